@@ -0,0 +1,92 @@
+/**
+ * Copyright 2011, Deft Labs.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.deftlabs.tests.mongo;
+
+// Java
+import java.util.ArrayList;
+
+/**
+ * Runs the durability test (kill/restart while writing) for every combination
+ * of durability mode, batch size, writer count and kill interval, and prints
+ * the throughput, batch latency and lost/duplicated tasks of each one.
+ *
+ * The matrix is set with system properties (comma separated lists):
+ *
+ * bench.modes - NORMAL,SAFE,JOURNALED,FSYNC
+ * bench.batchSizes - 1,100
+ * bench.writers - 1,4
+ * bench.killIntervals - 10000 (millis)
+ * bench.tasks - 1000
+ *
+ * The server is picked with the durability.* properties (see
+ * DurabilityTest.controller), e.g. -Ddurability.fake=true runs against the
+ * in-JVM FakeMongod.
+ *
+ * Run with: ant bench
+ */
+public final class DurabilityBenchmark {
+
+    public static void main(final String [] pArgs) throws Exception {
+        final String [] modes = list("bench.modes", "NORMAL,SAFE,JOURNALED,FSYNC");
+        final String [] batchSizes = list("bench.batchSizes", "1,100");
+        final String [] writers = list("bench.writers", "1,4");
+        final String [] killIntervals = list("bench.killIntervals", "10000");
+        final int tasks = Integer.getInteger("bench.tasks", 1000);
+        final MongoController controller = DurabilityTest.controller();
+
+        final ArrayList<DurabilityTest.Report> reports = new ArrayList<DurabilityTest.Report>();
+
+        for (final String mode : modes) {
+            for (final String batchSize : batchSizes) {
+                for (final String writerCount : writers) {
+                    for (final String killInterval : killIntervals) {
+
+                        final DurabilityTest test = new DurabilityTest( controller,
+                                                                        DurabilityMode.valueOf(mode),
+                                                                        tasks,
+                                                                        Integer.parseInt(batchSize),
+                                                                        Integer.parseInt(writerCount),
+                                                                        Long.parseLong(killInterval));
+                        final DurabilityTest.Report report = test.run();
+                        System.out.println(report);
+                        reports.add(report);
+                    }
+                }
+            }
+        }
+
+        System.out.println();
+        System.out.println(String.format("%-10s %6s %8s %10s %12s %10s %10s %8s %11s",
+                            "mode", "batch", "writers", "kill (ms)", "tasks/sec", "p50 (us)", "p99 (us)", "lost", "duplicates"));
+
+        for (final DurabilityTest.Report report : reports) {
+            System.out.println(String.format("%-10s %6d %8d %10d %12.1f %10d %10d %8d %11d",
+                                report.getMode(),
+                                report.getBatchSize(),
+                                report.getWriterCount(),
+                                report.getKillInterval(),
+                                report.getThroughput(),
+                                report.getP50Micros(),
+                                report.getP99Micros(),
+                                report.getLost(),
+                                report.getDuplicates()));
+        }
+    }
+
+    private static String [] list(final String pName, final String pDefault)
+    { return System.getProperty(pName, pDefault).trim().split("\\s*,\\s*"); }
+}
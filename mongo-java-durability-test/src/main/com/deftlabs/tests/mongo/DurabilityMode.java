@@ -0,0 +1,77 @@
+/**
+ * Copyright 2011, Deft Labs.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.deftlabs.tests.mongo;
+
+// Mongo
+import com.mongodb.BasicDBObject;
+import com.mongodb.CommandResult;
+import com.mongodb.DB;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.MongoException;
+import com.mongodb.WriteConcern;
+
+// Java
+import java.util.List;
+
+/**
+ * How a batch is written and how long we wait before it counts as written.
+ *
+ * NORMAL - fire and forget.
+ * SAFE - wait for getlasterror (in memory on the server).
+ * JOURNALED - wait until the write is in the journal. The driver has no write
+ * concern for this, so the batch is sent and then getlasterror is called with
+ * j:true on the same connection.
+ * FSYNC - wait until the data files are fsync'd.
+ */
+public enum DurabilityMode {
+
+    NORMAL, SAFE, JOURNALED, FSYNC;
+
+    /**
+     * Insert the batch and wait as long as the mode requires. Throws if the
+     * write failed.
+     */
+    public void insert(final DBCollection pCollection, final List<DBObject> pBatch) {
+        switch (this) {
+            case NORMAL: pCollection.insert(pBatch, WriteConcern.NORMAL); return;
+            case SAFE: pCollection.insert(pBatch, WriteConcern.SAFE); return;
+            case FSYNC: pCollection.insert(pBatch, WriteConcern.FSYNC_SAFE); return;
+            case JOURNALED: insertJournaled(pCollection, pBatch); return;
+            default: throw new IllegalStateException("unknown mode: " + this);
+        }
+    }
+
+    private static void insertJournaled(final DBCollection pCollection, final List<DBObject> pBatch) {
+        final DB db = pCollection.getDB();
+
+        // getlasterror must go out on the connection that sent the insert.
+        db.requestStart();
+        try {
+            pCollection.insert(pBatch, WriteConcern.NORMAL);
+
+            final BasicDBObject cmd = new BasicDBObject("getlasterror", 1);
+            cmd.put("j", true);
+            final CommandResult res = db.command(cmd);
+            res.throwOnError();
+
+            // A failed insert still gives an ok getlasterror, with err set.
+            final Object err = res.get("err");
+            if (err != null) throw new MongoException("journaled insert failed: " + err);
+        } finally { db.requestDone(); }
+    }
+}
@@ -18,24 +18,21 @@ package com.deftlabs.tests.mongo;
 
 // Mongo
 import com.mongodb.Mongo;
-import com.mongodb.DBCursor;
 import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
 import com.mongodb.DBAddress;
 import com.mongodb.BasicDBObject;
-import com.mongodb.WriteConcern;
-import com.mongodb.WriteResult;
-import com.mongodb.MongoException;
-import com.mongodb.CommandResult;
 
 // Java
 import java.io.File;
-import java.io.IOException;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Timer;
 import java.util.TimerTask;
-import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.concurrent.locks.ReentrantLock;
-import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * A Java test of durability.
@@ -43,7 +40,8 @@ import java.util.concurrent.ArrayBlockingQueue;
  * Tested against 1.8.0-rc0-pre-
  *
  * This test launches Mongo, so you need to make sure the binary is in your
- * path.
+ * path. Run with -Ddurability.fake=true to use the in-JVM FakeMongod instead
+ * (see durability.lossRate).
  *
  * Test:
  * Launch Mongo
@@ -51,194 +49,553 @@ import java.util.concurrent.ArrayBlockingQueue;
  * Kill Mongo while inserting
  * Start Mongo and verify counts
  *
+ * With a client restart (the default for main, see durability.restartClient)
+ * the writers are also stopped once about half the tasks are in, without
+ * acking what they have in flight, as if the client died. The spool is then
+ * reopened from its files and the writers carry on with what it replays, so
+ * the run checks that nothing in the spool is lost across a restart.
+ *
+ * The server, durability mode, task count, batch size, writer threads and
+ * kill interval can be set in the constructor (see DurabilityBenchmark). The
+ * defaults are used by main.
  */
 public class DurabilityTest {
 
     private static final int TEST_TASKS = 1000;
 
-    private Mongo _mongo;
+    // The max number of tasks written (and fsync'd) together.
+    private static final int BATCH_SIZE = 100;
+
+    private static final int WRITER_THREADS = 1;
+
+    // How often Mongo is killed (or restarted).
+    private static final long KILL_INTERVAL = 10000;
+
+    private static final int PORT = 27017;
+
+    // The mongod --syncdelay in seconds.
+    private static final int SYNC_DELAY = 120;
+
+    // The share of unsynced writes the fake server loses on a kill.
+    private static final double LOSS_RATE = 1.0;
+
+    // The number of threads reading the collection back.
+    private static final int VERIFY_THREADS = 4;
+
+    // The local spool that holds the tasks until they are in Mongo.
+    private static final File SPOOL_DIR = new File("/tmp/mongo-dur-spool");
+    private static final int SPOOL_SEGMENT_SIZE = 4 * 1024 * 1024;
+
+    // The batches read ahead of the writers, per writer.
+    private static final int READY_BATCHES_PER_WRITER = 2;
+
+    // How long a writer backs off after a failed write.
+    private static final long RETRY_DELAY_NANOS = 100 * 1000000L;
+
+    // Kill and restart the client (not just Mongo) half way through.
+    private static final boolean RESTART_CLIENT = true;
+
+    // The connection state. Only the killer task and finish change it (under
+    // _control); the writers only read it.
+    private static final int DOWN = 0;
+    private static final int UP = 1;
+    private static final int STOPPED = 2;
+
+    private final AtomicReference<Mongo> _mongo = new AtomicReference<Mongo>();
     private final Timer _timer = new Timer();
-    private final AtomicBoolean _mongoRunning = new AtomicBoolean(false);
-    private final ReentrantLock _lock = new ReentrantLock(true);
-    private volatile Process _mongoProcess;
-    private TaskWriter _taskWriter;
+    private final AtomicInteger _state = new AtomicInteger(DOWN);
+    private final Object _control = new Object();
+
+    // Writers waiting for Mongo to come back.
+    private final ConcurrentLinkedQueue<Thread> _parked = new ConcurrentLinkedQueue<Thread>();
+
+    // Batches that failed, for any writer to retry.
+    private final ConcurrentLinkedQueue<Batch> _retries = new ConcurrentLinkedQueue<Batch>();
+
+    // Batches read from the spool by the spool reader, for any writer to take.
+    private final ConcurrentLinkedQueue<Batch> _ready = new ConcurrentLinkedQueue<Batch>();
+    private final AtomicInteger _readyCount = new AtomicInteger(0);
+    private SpoolReader _spoolReader;
+
+    private final ArrayList<TaskWriter> _taskWriters = new ArrayList<TaskWriter>();
+
+    private TaskSpool _spool;
+    private final IdempotentInserter _inserter;
+    // One per writer (merged for the report), so recording is never contended.
+    private final ArrayList<LatencyRecorder> _writerLatencies = new ArrayList<LatencyRecorder>();
+    private long _startTime;
+    private volatile long _lastWriteTime;
+
+    // Set while the client is being "killed"; the writers drop what they have.
+    private volatile boolean _clientDown;
+    private int _replayed = -1;
+
+    private final MongoController _controller;
+    private final DurabilityMode _mode;
+    private final int _taskCount;
+    private final int _batchSize;
+    private final int _writerCount;
+    private final long _killInterval;
+    private final boolean _restartClient;
+
+    public DurabilityTest() {
+        this(   controller(), DurabilityMode.FSYNC, TEST_TASKS, BATCH_SIZE, WRITER_THREADS, KILL_INTERVAL,
+                Boolean.parseBoolean(System.getProperty("durability.restartClient", Boolean.toString(RESTART_CLIENT))));
+    }
 
-    private final ArrayBlockingQueue<BasicDBObject> _tasks
-    = new ArrayBlockingQueue<BasicDBObject>(TEST_TASKS);
+    public DurabilityTest(  final MongoController pController,
+                            final DurabilityMode pMode,
+                            final int pTaskCount,
+                            final int pBatchSize,
+                            final int pWriterCount,
+                            final long pKillInterval)
+    { this(pController, pMode, pTaskCount, pBatchSize, pWriterCount, pKillInterval, false); }
+
+    public DurabilityTest(  final MongoController pController,
+                            final DurabilityMode pMode,
+                            final int pTaskCount,
+                            final int pBatchSize,
+                            final int pWriterCount,
+                            final long pKillInterval,
+                            final boolean pRestartClient)
+    {
+        _controller = pController;
+        _mode = pMode;
+        _taskCount = pTaskCount;
+        _batchSize = pBatchSize;
+        _writerCount = pWriterCount;
+        _killInterval = pKillInterval;
+        _restartClient = pRestartClient;
+        _inserter = new IdempotentInserter(pMode);
+    }
 
     public static void main(final String [] pArgs) throws Exception {
         final DurabilityTest test = new DurabilityTest();
-        test.setup();
+        System.out.println(test.run());
+    }
+
+    /**
+     * The server set by the durability.* system properties: a real mongod, or
+     * with durability.fake the in-JVM FakeMongod.
+     */
+    public static MongoController controller() {
+        final int port = Integer.getInteger("durability.port", PORT);
+
+        if (!Boolean.getBoolean("durability.fake")) return new MongodController(port, Integer.getInteger("durability.syncDelay", SYNC_DELAY));
+
+        final String lossRate = System.getProperty("durability.lossRate");
+        return new FakeMongod(port, Integer.getInteger("durability.syncDelay", SYNC_DELAY) * 1000L, (lossRate == null) ? LOSS_RATE : Double.parseDouble(lossRate));
+    }
+
+    /**
+     * Write every task while Mongo is killed and restarted, then verify.
+     */
+    public Report run() throws Exception {
+        setup();
+
+        if (_restartClient) {
+            while (_spool.pending() > _taskCount / 2) { Thread.sleep(10); }
+            restartClient();
+        }
 
-        while (test.processingTasks()) { Thread.sleep(1000); }
+        while (processingTasks()) { Thread.sleep(100); }
 
         Thread.sleep(5000);
 
-        test.finalize();
+        return finish();
     }
 
     public void setup() throws Exception {
+        // Start with an empty spool - restartClient covers replaying one.
+        if (SPOOL_DIR.exists()) { for (final File file : SPOOL_DIR.listFiles()) file.delete(); }
+        _spool = new TaskSpool(SPOOL_DIR, SPOOL_SEGMENT_SIZE);
+
         // Load up the test tasks to process.
-        for (int idx=0; idx < TEST_TASKS; idx++) {
+        for (int idx=0; idx < _taskCount; idx++) {
             final BasicDBObject obj = new BasicDBObject("count", idx);
             obj.put("test", TEST_DATA);
-            _tasks.put(obj);
+            obj.put("crc", TEST_DATA_CRC);
+            IdempotentInserter.assignId(obj);
+            _spool.append(obj);
         }
 
-        _timer.scheduleAtFixedRate(new MongoRunnerKillerTask(), 0, 10000);
+        // Start from an empty collection, so earlier runs do not show up as duplicates.
+        startMongo();
+        dropCollection();
+
+        _timer.scheduleAtFixedRate(new MongoRunnerKillerTask(), _killInterval, _killInterval);
+
+        _startTime = System.nanoTime();
+        _lastWriteTime = _startTime;
 
-        _taskWriter = new TaskWriter();
-        _taskWriter.start();
+        startWriters();
     }
 
-    public boolean processingTasks() { return (!_tasks.isEmpty()); }
+    /**
+     * Stop the writers as if the client died - whatever they have in flight is
+     * not acked, even if it was written - and reopen the spool from its files.
+     * The new writers replay every task that was not acked.
+     */
+    public void restartClient() throws Exception {
+        _clientDown = true;
+        stopWriters();
+        _retries.clear();
+        _ready.clear();
+        _readyCount.set(0);
+
+        _spool.close();
+        _spool = new TaskSpool(SPOOL_DIR, SPOOL_SEGMENT_SIZE);
+        _replayed = _spool.pending();
+
+        System.out.println("Client restarted - replaying: " + _replayed + " tasks");
+
+        _clientDown = false;
+        startWriters();
+    }
 
-    public void finalize() throws Exception {
-        try {
-            _lock.lock();
+    private void startWriters() {
+        _spoolReader = new SpoolReader();
+        _spoolReader.start();
 
-            _timer.cancel();
+        for (int idx=0; idx < _writerCount; idx++) {
+            final TaskWriter writer = new TaskWriter();
+            _taskWriters.add(writer);
+            _writerLatencies.add(writer._latencies);
+            writer.start();
+        }
+    }
 
-            _taskWriter.interrupt();
+    private void stopWriters() throws InterruptedException {
+        unparkWriters();
+        LockSupport.unpark(_spoolReader);
+        _spoolReader.join();
+        for (final TaskWriter writer : _taskWriters) writer.join();
+        _taskWriters.clear();
+    }
 
-            // Make sure we start mongo.
-            if (!_mongoRunning.get()) startMongo();
+    public boolean processingTasks() { return (_spool.pending() > 0); }
 
-            Thread.sleep(4000);
+    /**
+     * Stop the writers, verify what made it into Mongo and stop Mongo.
+     */
+    public Report finish() throws Exception {
+        synchronized(_control) {
+            _timer.cancel();
 
-            System.out.println("Collection count: " + getCollection().getCount() + " - expecting: " + TEST_TASKS);
+            // Make sure we start mongo.
+            if (_state.getAndSet(STOPPED) == DOWN) _controller.start();
+        }
 
-            final DBCursor cur = getCollection().find();
+        stopWriters();
 
-            final HashMap<Integer, Boolean> found = new HashMap<Integer, Boolean>();
+        _spool.close();
 
-            int inaccurateCount = 0;
-            while (cur.hasNext()) {
-                final BasicDBObject obj = (BasicDBObject)cur.next();
-                found.put(obj.getInt("count"), Boolean.TRUE);
-                if (!(obj.getString("test")).equals(TEST_DATA)) inaccurateCount++;
-            }
+        Thread.sleep(4000);
 
-            cur.close();
+        System.out.println("Collection count: " + getCollection().getCount() + " - expecting: " + _taskCount);
 
-            int missingCount = 0;
+        final DurabilityVerifier.Result result
+        = new DurabilityVerifier(getCollection(), _taskCount, TEST_DATA_CRC, VERIFY_THREADS).verify();
 
-            for (int idx=0; idx < TEST_TASKS; idx++) {
-                final Boolean val = found.get(idx);
-                if (val == null) missingCount++;
-            }
+        System.out.println(result + " - skipped on retry: " + _inserter.getSkipped());
 
-            System.out.println("Missing : " + missingCount + " - inaccurate: " + inaccurateCount);
+        // Stop mongo.
+        _controller.stop();
 
-            // Stop mongo.
-            stopMongo();
-        } finally { _lock.unlock(); }
+        return new Report(result);
     }
 
+    /**
+     * Writes the tasks from the spool in batches. Each batch is one insert
+     * message followed by one getlasterror (as required by the mode), so the
+     * cost of the wait is shared by every task in the batch. The tasks are
+     * acked in the spool only after the write succeeds.
+     *
+     * The writers take batches from two lock-free queues: the retry queue and
+     * the ready queue that the spool reader fills, so they never wait on the
+     * spool lock to get work. Acks do not take it either, except for the ack
+     * that finishes a segment. Each writer records its own latencies. While
+     * Mongo is up they all write in parallel; while it is down they park
+     * until the killer task brings it back. A batch that fails goes on the
+     * retry queue for whichever writer is free next, which sends only the
+     * tasks that did not land.
+     */
     private class TaskWriter extends Thread {
         public void run() {
+            while (!_clientDown) {
+                final int state = _state.get();
+                if (state == STOPPED) return;
+                if (state == DOWN) { park(); continue; }
+
+                Batch batch = _retries.poll();
+                if (batch == null) batch = takeReady();
+
+                if (batch == null) {
+                    if (_spool.pending() == 0) return;
+                    if (_spoolReader.isAlive()) { waitForReady(); continue; }
+
+                    // The rest is in flight with other writers (and may come back).
+                    LockSupport.parkNanos(RETRY_DELAY_NANOS);
+                    continue;
+                }
 
-            while (true) {
-                BasicDBObject task = null;
                 try {
-                    _lock.lock();
+                    final long start = System.nanoTime();
 
-                    if (!_mongoRunning.get()) {
-                        Thread.sleep(1000);
-                        continue;
-                    }
+                    _inserter.insert(getCollection(), batch.tasks, batch.mayHaveLanded);
 
-                    if (_tasks.isEmpty()) break;
+                    // Died before the ack - the spool replays the batch.
+                    if (_clientDown) return;
 
-                    task = _tasks.take();
+                    _lastWriteTime = System.nanoTime();
+                    _latencies.record(_lastWriteTime - start);
 
-                    final WriteResult result
-                    = getCollection().insert(task, WriteConcern.FSYNC_SAFE);
+                    for (final TaskSpool.Entry entry : batch.entries) _spool.ack(entry);
 
-                    final CommandResult cmdResult = result.getLastError();
-                    if (!cmdResult.ok()) _tasks.put(task);
+                } catch (final Throwable t) {
+                    // Retry the batch - some of it may be in already.
+                    batch.mayHaveLanded = true;
+                    _retries.add(batch);
 
-                } catch (final MongoException me) {
+                    //System.out.println("----------------------- throwable");
 
-                    try { if (task != null) _tasks.put(task);
-                    } catch (final InterruptedException ie) { break; }
+                    //t.printStackTrace();
 
-                } catch (final IOException ioe) {
+                    LockSupport.parkNanos(RETRY_DELAY_NANOS);
+                }
+            }
+        }
 
-                    try { if (task != null) _tasks.put(task);
-                    } catch (final InterruptedException ie) { break; }
+        /**
+         * Wait for the spool reader to add a batch. As in park, the queue is
+         * checked again after joining the parked writers.
+         */
+        private void waitForReady() {
+            final Thread thread = Thread.currentThread();
+            _parked.add(thread);
+            if (_ready.isEmpty() && _spoolReader.isAlive() && !_clientDown && _state.get() == UP) LockSupport.park(this);
+            _parked.remove(thread);
+        }
 
-                } catch (final InterruptedException ie) { break;
-                } catch (final Throwable t) {
+        private Batch takeReady() {
+            final Batch batch = _ready.poll();
+            if (batch == null) return null;
 
-                    try { if (task != null) _tasks.put(task);
-                    } catch (final InterruptedException ie) { break; }
+            // There is room for another one now.
+            _readyCount.decrementAndGet();
+            LockSupport.unpark(_spoolReader);
+            return batch;
+        }
 
-                    //System.out.println("----------------------- throwable");
+        /**
+         * Wait until Mongo is up (or the test or client stops). The state is
+         * checked again after joining the queue, so a wake up can not be missed.
+         */
+        private void park() {
+            final Thread thread = Thread.currentThread();
+            _parked.add(thread);
+            if (_state.get() == DOWN && !_clientDown) LockSupport.park(this);
+            _parked.remove(thread);
+        }
 
-                    //t.printStackTrace();
-                } finally { _lock.unlock(); }
+        private final LatencyRecorder _latencies = new LatencyRecorder();
+    }
+
+    /**
+     * The only thread that polls the spool. It keeps up to
+     * READY_BATCHES_PER_WRITER batches per writer on the ready queue and parks
+     * while that is full (a writer that takes one unparks it). It is done once
+     * every task in the spool has been handed out.
+     */
+    private class SpoolReader extends Thread {
+        public void run() {
+            try { fill();
+            } finally { unparkWriters(); } // Writers waiting for a batch see that there are no more.
+        }
+
+        private void fill() {
+            final int maxReady = _writerCount * READY_BATCHES_PER_WRITER;
+
+            while (!_clientDown && _state.get() != STOPPED) {
+                if (_readyCount.get() >= maxReady) { LockSupport.park(this); continue; }
+
+                final Batch batch = new Batch(_batchSize);
+                if (_spool.poll(batch.entries, _batchSize) == 0) return;
+
+                for (final TaskSpool.Entry entry : batch.entries) {
+                    batch.tasks.add(entry.getTask());
+                    if (entry.isRecovered()) batch.mayHaveLanded = true;
+                }
+
+                _readyCount.incrementAndGet();
+                _ready.add(batch);
+                if (!_parked.isEmpty()) unparkWriters();
             }
         }
     }
 
+    /**
+     * Tasks polled from the spool and written together.
+     */
+    private static final class Batch {
+        private Batch(final int pSize) {
+            entries = new ArrayList<TaskSpool.Entry>(pSize);
+            tasks = new ArrayList<DBObject>(pSize);
+        }
+
+        private final ArrayList<TaskSpool.Entry> entries;
+        private final ArrayList<DBObject> tasks;
+        private boolean mayHaveLanded;
+    }
+
+    private void unparkWriters() { for (final Thread thread : _parked) LockSupport.unpark(thread); }
+
+    /**
+     * The numbers for one run.
+     */
+    public final class Report {
+        private Report(final DurabilityVerifier.Result pResult) {
+            result = pResult;
+            elapsedMillis = (_lastWriteTime - _startTime) / 1000000;
+            final LatencyRecorder latencies = new LatencyRecorder();
+            for (final LatencyRecorder writerLatencies : _writerLatencies) latencies.addAll(writerLatencies);
+
+            p50Micros = latencies.percentile(0.50) / 1000;
+            p99Micros = latencies.percentile(0.99) / 1000;
+        }
+
+        public DurabilityMode getMode() { return _mode; }
+        public int getTaskCount() { return _taskCount; }
+        public int getBatchSize() { return _batchSize; }
+        public int getWriterCount() { return _writerCount; }
+        public long getKillInterval() { return _killInterval; }
+
+        /**
+         * The tasks replayed from the spool after the client restart (-1 if it
+         * was not restarted).
+         */
+        public int getReplayed() { return _replayed; }
+
+        /**
+         * The tasks written per second, from the start until the last batch was acked.
+         */
+        public double getThroughput()
+        { return (elapsedMillis == 0) ? 0 : (_taskCount * 1000.0) / elapsedMillis; }
+
+        /**
+         * The write latency of a batch (the time a task waits for its batch).
+         */
+        public long getP50Micros() { return p50Micros; }
+        public long getP99Micros() { return p99Micros; }
+
+        /**
+         * The tasks that were acked but did not survive.
+         */
+        public int getLost() { return result.getMissing(); }
+        public long getDuplicates() { return result.getDuplicates(); }
+        public long getInaccurate() { return result.getInaccurate(); }
+
+        public String toString() {
+            return "mode: " + _mode + " - batch: " + _batchSize + " - writers: " + _writerCount
+            + " - kill interval: " + _killInterval + " - tasks/sec: " + String.format("%.1f", getThroughput())
+            + " - p50: " + p50Micros + "us - p99: " + p99Micros + "us - lost: " + getLost()
+            + " - duplicates: " + getDuplicates() + " - inaccurate: " + getInaccurate()
+            + ((_replayed == -1) ? "" : " - replayed: " + _replayed);
+        }
+
+        private final DurabilityVerifier.Result result;
+        private final long elapsedMillis;
+        private final long p50Micros;
+        private final long p99Micros;
+    }
+
+    /**
+     * Collects the batch write times (in nanos). Not thread safe - each writer
+     * has its own, and they are merged once the writers are joined.
+     */
+    private static final class LatencyRecorder {
+        private void record(final long pNanos) {
+            if (_count == _samples.length) _samples = Arrays.copyOf(_samples, _count * 2);
+            _samples[_count++] = pNanos;
+        }
+
+        private void addAll(final LatencyRecorder pOther)
+        { for (int idx=0; idx < pOther._count; idx++) record(pOther._samples[idx]); }
+
+        private long percentile(final double pPercentile) {
+            if (_count == 0) return 0;
+            final long [] sorted = Arrays.copyOf(_samples, _count);
+            Arrays.sort(sorted);
+            return sorted[Math.min(_count - 1, (int)Math.ceil(pPercentile * _count) - 1)];
+        }
+
+        private long [] _samples = new long[1024];
+        private int _count;
+    }
+
     private DBCollection getCollection() throws Exception
     { return getMongo().getDB("test").getCollection("durability"); }
 
     private Mongo getMongo() throws Exception {
-        if (_mongo != null) return _mongo;
-        _mongo = new Mongo(new DBAddress("127.0.0.1", 27017, "test"));
+        final Mongo mongo = _mongo.get();
+        if (mongo != null) return mongo;
+
+        // Several writers may get here at once; only one instance is kept.
+        final Mongo created = new Mongo(new DBAddress("127.0.0.1", _controller.getPort(), "test"));
+        if (_mongo.compareAndSet(null, created)) return created;
+
+        created.close();
         return getMongo();
     }
 
     private void forceSync() throws Exception
     { getMongo().getDB("admin").command("{fsync:1,async:true}"); }
 
-    private void startMongo() throws Exception {
-        final File lockFile = new File("/data/db/", "mongod.lock");
-        if (lockFile.exists()) lockFile.delete();
-        _mongoProcess = Runtime.getRuntime().exec(new String [] { "mongod", "--dur", "--logappend", "--logpath", "/tmp/mongo-dur.log", "--syncdelay", "120"  }, null, null);
-        _mongoRunning.set(true);
+    /**
+     * Drop the collection, waiting for a newly started Mongo to accept connections.
+     */
+    private void dropCollection() throws Exception {
+        for (int attempt=0; ; attempt++) {
+            try { getCollection().drop(); return;
+            } catch (final Exception e) {
+                if (attempt == 60) throw e;
+                Thread.sleep(1000);
+            }
+        }
     }
 
-    private void stopMongo() throws Exception {
-        _mongoRunning.set(false);
-        if (_mongoProcess != null) { _mongoProcess.destroy(); _mongoProcess = null; }
-        final File lockFile = new File("/data/db/", "mongod.lock");
-        if (lockFile.exists()) lockFile.delete();
+    private void startMongo() throws Exception {
+        _controller.start();
+        _state.set(UP);
+        unparkWriters();
     }
 
     private void killMongo() throws Exception {
-        _mongoRunning.set(false);
+        _state.set(DOWN);
         Thread.sleep(1000);
 
-        _mongo = null;
-        if (_mongoProcess != null) {
-            //forceSync();
-            Runtime.getRuntime().exec(new String [] { "killall", "-9", "mongod" }, null, null);
-           _mongoProcess.destroy();
-           _mongoProcess = null;
-        }
-
-        final File lockFile = new File("/data/db/", "mongod.lock");
-        if (lockFile.exists()) lockFile.delete();
+        // Close the old client so its connections and threads are not leaked.
+        final Mongo mongo = _mongo.getAndSet(null);
+        if (mongo != null) mongo.close();
+        //forceSync();
+        _controller.kill();
     }
 
     private class MongoRunnerKillerTask extends TimerTask {
         public void run() {
             try {
-                _lock.lock();
-
-                // If running, we're going to kill it; otherwise, start Mongo.
-                if (_mongoRunning.get()) killMongo();
-                else startMongo();
-
-            } catch (final Throwable t) { t.printStackTrace();
-            } finally { _lock.unlock(); }
+                synchronized(_control) {
+                    // If running, we're going to kill it; otherwise, start Mongo.
+                    final int state = _state.get();
+                    if (state == UP) killMongo();
+                    else if (state == DOWN) startMongo();
+                }
+            } catch (final Throwable t) { t.printStackTrace(); }
         }
     }
 
     private static final String TEST_DATA = "0000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000000";
 
-}
+    private static final long TEST_DATA_CRC = DurabilityVerifier.crc(TEST_DATA);
 
+}
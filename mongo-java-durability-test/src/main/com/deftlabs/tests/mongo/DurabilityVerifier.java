@@ -0,0 +1,231 @@
+/**
+ * Copyright 2011, Deft Labs.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.deftlabs.tests.mongo;
+
+// Mongo
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+
+// Java
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+
+/**
+ * Verifies that every task from 0 to expected - 1 is in the collection once
+ * and that its payload is intact.
+ *
+ * The count range is split into chunks that are read in parallel, each with a
+ * range query on count and a projection, so only one batch per thread is in
+ * memory at a time. The counts seen are marked in a bitset (a long per 64
+ * tasks). The chunks are aligned on 64, so every word of the bitset is only
+ * ever written by one thread and no locking is needed.
+ *
+ * Each task stores the crc of its payload when it is created (see crc). The
+ * verifier reads the payload back and hashes it (with one CRC32 per thread),
+ * and a task is counted as inaccurate if the payload is missing, does not
+ * match its stored crc or the stored crc is not the expected one. With
+ * skipPayload set only count and crc are projected, so the payloads are never
+ * sent back; that only checks that the crc field survived.
+ */
+public final class DurabilityVerifier {
+
+    public DurabilityVerifier(  final DBCollection pCollection,
+                                final int pExpected,
+                                final long pExpectedCrc,
+                                final int pThreads)
+    { this(pCollection, pExpected, pExpectedCrc, pThreads, false); }
+
+    public DurabilityVerifier(  final DBCollection pCollection,
+                                final int pExpected,
+                                final long pExpectedCrc,
+                                final int pThreads,
+                                final boolean pSkipPayload)
+    {
+        _collection = pCollection;
+        _expected = pExpected;
+        _expectedCrc = pExpectedCrc;
+        _threads = pThreads;
+        _skipPayload = pSkipPayload;
+    }
+
+    /**
+     * The crc of a payload, as stored in the crc field of a task.
+     */
+    public static long crc(final String pPayload) {
+        final CRC32 crc = new CRC32();
+        crc.update(utf8(pPayload));
+        return crc.getValue();
+    }
+
+    public Result verify() throws Exception {
+        // The range queries need an index on count.
+        _collection.ensureIndex(new BasicDBObject("count", 1));
+
+        final long [] seen = new long[(_expected + 63) >>> 6];
+
+        // A few chunks per thread so a slow range does not hold up the rest.
+        final int chunks = _threads * CHUNKS_PER_THREAD;
+        final int chunkSize = Math.max(64, ((_expected / chunks) + 63) & ~63);
+
+        final ExecutorService executor = Executors.newFixedThreadPool(_threads);
+        final ArrayList<Future<Result>> futures = new ArrayList<Future<Result>>();
+
+        try {
+            for (int start=0; start < _expected; start += chunkSize) {
+                final int end = (int)Math.min((long)start + chunkSize, _expected);
+                futures.add(executor.submit(new RangeVerifier(seen, start, (end == _expected) ? Integer.MAX_VALUE : end)));
+            }
+
+            // Counts below zero are not in any range.
+            futures.add(executor.submit(new RangeVerifier(seen, Integer.MIN_VALUE, 0)));
+
+            final Result total = new Result();
+            for (final Future<Result> future : futures) total.add(future.get());
+
+            for (final long word : seen) total._found += Long.bitCount(word);
+            total._missing = _expected - total._found;
+
+            return total;
+        } finally { executor.shutdownNow(); }
+    }
+
+    /**
+     * Reads the tasks with count in [start, end).
+     */
+    private final class RangeVerifier implements Callable<Result> {
+
+        private RangeVerifier(final long [] pSeen, final int pStart, final int pEnd)
+        { _seen = pSeen; _start = pStart; _end = pEnd; }
+
+        public Result call() {
+            final Result result = new Result();
+
+            final BasicDBObject range = new BasicDBObject("$gte", _start);
+            range.put("$lt", _end);
+
+            final BasicDBObject fields = new BasicDBObject("_id", 0);
+            fields.put("count", 1);
+            fields.put("crc", 1);
+            if (!_skipPayload) fields.put("test", 1);
+
+            final CRC32 crc = _crc.get();
+
+            final DBCursor cur = _collection.find(new BasicDBObject("count", range), fields).batchSize(BATCH_SIZE);
+
+            try {
+                while (cur.hasNext()) {
+                    final DBObject obj = cur.next();
+                    final int count = ((Number)obj.get("count")).intValue();
+
+                    if (count < 0 || count >= _expected) { result._unexpected++; continue; }
+
+                    final long mask = 1L << count;
+                    if ((_seen[count >>> 6] & mask) != 0) result._duplicates++;
+                    else _seen[count >>> 6] |= mask;
+
+                    final Object stored = obj.get("crc");
+                    if (!(stored instanceof Number) || ((Number)stored).longValue() != _expectedCrc) { result._inaccurate++; continue; }
+
+                    if (_skipPayload) continue;
+
+                    final Object payload = obj.get("test");
+                    if (!(payload instanceof String)) { result._inaccurate++; continue; }
+
+                    crc.reset();
+                    crc.update(utf8((String)payload));
+                    if (crc.getValue() != _expectedCrc) result._inaccurate++;
+                }
+            } finally { cur.close(); }
+
+            return result;
+        }
+
+        private final long [] _seen;
+        private final int _start;
+        private final int _end;
+    }
+
+    /**
+     * The outcome of a verify run.
+     */
+    public static final class Result {
+
+        /**
+         * The number of distinct expected tasks found.
+         */
+        public int getFound() { return _found; }
+
+        public int getMissing() { return _missing; }
+
+        /**
+         * The number of extra copies of a task.
+         */
+        public long getDuplicates() { return _duplicates; }
+
+        /**
+         * The number of tasks without the expected payload crc.
+         */
+        public long getInaccurate() { return _inaccurate; }
+
+        /**
+         * The number of documents with a count outside of the expected range.
+         */
+        public long getUnexpected() { return _unexpected; }
+
+        public String toString() {
+            return "found: " + _found + " - missing: " + _missing + " - duplicates: " + _duplicates
+            + " - inaccurate: " + _inaccurate + " - unexpected: " + _unexpected;
+        }
+
+        private void add(final Result pOther) {
+            _duplicates += pOther._duplicates;
+            _inaccurate += pOther._inaccurate;
+            _unexpected += pOther._unexpected;
+        }
+
+        private int _found;
+        private int _missing;
+        private long _duplicates;
+        private long _inaccurate;
+        private long _unexpected;
+    }
+
+    private static byte [] utf8(final String pVal) {
+        try { return pVal.getBytes("UTF-8");
+        } catch (final UnsupportedEncodingException uee) { throw new IllegalStateException(uee); }
+    }
+
+    private static final int CHUNKS_PER_THREAD = 4;
+    private static final int BATCH_SIZE = 1000;
+
+    private final DBCollection _collection;
+    private final int _expected;
+    private final long _expectedCrc;
+    private final int _threads;
+    private final boolean _skipPayload;
+
+    private final ThreadLocal<CRC32> _crc = new ThreadLocal<CRC32>() {
+        @Override protected CRC32 initialValue() { return new CRC32(); }
+    };
+}
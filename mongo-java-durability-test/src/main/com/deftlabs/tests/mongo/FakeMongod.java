@@ -0,0 +1,549 @@
+/**
+ * Copyright 2011, Deft Labs.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.deftlabs.tests.mongo;
+
+// Mongo
+import org.bson.BSON;
+import org.bson.BSONObject;
+import org.bson.BasicBSONObject;
+
+// Java
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An in-JVM stand-in for mongod that speaks enough of the wire protocol for
+ * the durability test: OP_INSERT, OP_QUERY (plain queries and the
+ * getlasterror, count, drop, fsync and ismaster commands), OP_GET_MORE and
+ * OP_KILL_CURSORS. Queries support equality, $in, $gt, $gte, $lt and $lte on
+ * top level fields, and include/exclude projections.
+ *
+ * The data lives in memory and survives kill and restart, the way the data
+ * files would. Writes are not durable until they are synced: by a
+ * getlasterror with fsync or j set, by the fsync command, by a clean stop or
+ * every sync delay. When the server is killed, each write that was not synced
+ * is lost with the configured probability (1.0 loses them all, like a crash
+ * without a journal).
+ *
+ * Everything is done under one lock, so this is for correctness testing, not
+ * a model of mongod performance.
+ */
+public final class FakeMongod implements MongoController {
+
+    /**
+     * @param pPort The port to listen on (on 127.0.0.1).
+     * @param pSyncDelay Millis between background syncs (0 for never).
+     * @param pLossRate The probability that a write that was not synced is lost on kill.
+     */
+    public FakeMongod(final int pPort, final long pSyncDelay, final double pLossRate) {
+        _port = pPort;
+        _syncDelay = pSyncDelay;
+        _lossRate = pLossRate;
+    }
+
+    public synchronized void start() throws Exception {
+        if (_serverSocket != null) return;
+
+        _serverSocket = new ServerSocket();
+        _serverSocket.setReuseAddress(true);
+        _serverSocket.bind(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), _port));
+
+        final ServerSocket serverSocket = _serverSocket;
+
+        final Thread acceptor = new Thread("fake-mongod-" + _port) {
+            public void run() {
+                while (true) {
+                    try { new Connection(serverSocket.accept()).start();
+                    } catch (final IOException ioe) { return; } // Closed by kill/stop.
+                }
+            }
+        };
+        acceptor.setDaemon(true);
+        acceptor.start();
+
+        if (_syncDelay > 0) {
+            _syncer = new Thread("fake-mongod-sync-" + _port) {
+                public void run() {
+                    try {
+                        while (!isInterrupted()) { Thread.sleep(_syncDelay); sync(); }
+                    } catch (final InterruptedException ie) { }
+                }
+            };
+            _syncer.setDaemon(true);
+            _syncer.start();
+        }
+    }
+
+    public void kill() throws Exception { shutdown(false); }
+
+    public void stop() throws Exception { shutdown(true); }
+
+    public int getPort() { return _port; }
+
+    /**
+     * Make every write so far durable.
+     */
+    public void sync() {
+        synchronized(_data) {
+            for (final Op op : _unsynced) op.apply(_durable);
+            _unsynced.clear();
+        }
+    }
+
+    private void shutdown(final boolean pClean) throws Exception {
+        synchronized(this) {
+            if (_serverSocket == null) return;
+
+            _serverSocket.close();
+            _serverSocket = null;
+
+            if (_syncer != null) { _syncer.interrupt(); _syncer = null; }
+        }
+
+        // Drop the clients on the floor, as a dead process would.
+        synchronized(_connections) {
+            for (final Socket socket : _connections) { try { socket.close(); } catch (final IOException ioe) { } }
+            _connections.clear();
+        }
+
+        _cursors.clear();
+
+        if (pClean) { sync(); return; }
+
+        synchronized(_data) {
+            for (final Op op : _unsynced) { if (_random.nextDouble() >= _lossRate) op.apply(_durable); }
+            _unsynced.clear();
+
+            // What is left after the restart is what made it to disk.
+            _data.clear();
+            for (final Map.Entry<String, LinkedHashMap<Object, BSONObject>> entry : _durable.entrySet())
+            { _data.put(entry.getKey(), new LinkedHashMap<Object, BSONObject>(entry.getValue())); }
+        }
+    }
+
+    /**
+     * One client connection. Requests on a connection are handled in order,
+     * which getlasterror depends on.
+     */
+    private final class Connection extends Thread {
+
+        private Connection(final Socket pSocket) {
+            super("fake-mongod-conn-" + _port);
+            setDaemon(true);
+            _socket = pSocket;
+            synchronized(_connections) { _connections.add(pSocket); }
+        }
+
+        public void run() {
+            try {
+                final DataInputStream in = new DataInputStream(_socket.getInputStream());
+                final OutputStream out = _socket.getOutputStream();
+                final byte [] header = new byte[16];
+
+                while (true) {
+                    in.readFully(header);
+                    final ByteBuffer head = ByteBuffer.wrap(header).order(ByteOrder.LITTLE_ENDIAN);
+
+                    final int length = head.getInt();
+                    final int requestId = head.getInt();
+                    head.getInt(); // responseTo
+                    final int opCode = head.getInt();
+
+                    final byte [] body = new byte[length - 16];
+                    in.readFully(body);
+                    final ByteBuffer buf = ByteBuffer.wrap(body).order(ByteOrder.LITTLE_ENDIAN);
+
+                    switch (opCode) {
+                        case OP_INSERT: insert(buf); break;
+                        case OP_QUERY: reply(out, requestId, queryOrFailure(buf)); break;
+                        case OP_GET_MORE: reply(out, requestId, getMore(buf)); break;
+                        case OP_KILL_CURSORS: killCursors(buf); break;
+                        default: _lastError = "unsupported op code: " + opCode; break;
+                    }
+                }
+            } catch (final IOException ioe) { // Closed by the client or by kill/stop.
+            } finally {
+                synchronized(_connections) { _connections.remove(_socket); }
+                try { _socket.close(); } catch (final IOException ioe) { }
+            }
+        }
+
+        private void insert(final ByteBuffer pBuf) {
+            pBuf.getInt(); // flags
+            final String ns = readCString(pBuf);
+
+            _lastError = null;
+
+            // Index builds are accepted and ignored.
+            if (ns.endsWith(".system.indexes")) return;
+
+            synchronized(_data) {
+                while (pBuf.hasRemaining()) {
+                    final BSONObject doc = readDocument(pBuf);
+                    final Op op = new Op(ns, doc);
+
+                    final LinkedHashMap<Object, BSONObject> coll = _data.get(ns);
+                    if (coll != null && coll.containsKey(doc.get("_id"))) {
+                        _lastError = "E11000 duplicate key error index: " + ns + ".$_id_  dup key: { : " + doc.get("_id") + " }";
+                        _lastErrorCode = 11000;
+                        return;
+                    }
+
+                    op.apply(_data);
+                    _unsynced.add(op);
+                }
+            }
+        }
+
+        private Reply query(final ByteBuffer pBuf) {
+            pBuf.getInt(); // flags
+            final String ns = readCString(pBuf);
+            pBuf.getInt(); // numberToSkip
+            final int numberToReturn = pBuf.getInt();
+
+            BSONObject query = readDocument(pBuf);
+            final BSONObject fields = pBuf.hasRemaining() ? readDocument(pBuf) : null;
+
+            if (query.containsField("$query")) query = (BSONObject)query.get("$query");
+
+            if (ns.endsWith(".$cmd")) return new Reply(0, Arrays.asList(command(ns.substring(0, ns.length() - 5), query)));
+
+            final ArrayList<BSONObject> docs = new ArrayList<BSONObject>();
+            synchronized(_data) {
+                final LinkedHashMap<Object, BSONObject> coll = _data.get(ns);
+                if (coll != null) { for (final BSONObject doc : coll.values()) { if (matches(doc, query)) docs.add(doc); } }
+            }
+
+            final Cursor cursor = new Cursor(docs.iterator(), fields);
+
+            // A negative (or one) number to return means a single batch.
+            if (numberToReturn < 0 || numberToReturn == 1) return new Reply(0, cursor.next(Math.abs(numberToReturn)));
+
+            final List<BSONObject> batch = cursor.next((numberToReturn == 0) ? DEFAULT_BATCH_SIZE : numberToReturn);
+            if (!cursor.remaining.hasNext()) return new Reply(0, batch);
+
+            final long cursorId = _nextCursorId.incrementAndGet();
+            _cursors.put(cursorId, cursor);
+            return new Reply(cursorId, batch);
+        }
+
+        private Reply queryOrFailure(final ByteBuffer pBuf) {
+            try { return query(pBuf);
+            } catch (final RuntimeException re) {
+                return new Reply(0, Arrays.asList((BSONObject)new BasicBSONObject("$err", String.valueOf(re.getMessage()))), QUERY_FAILURE);
+            }
+        }
+
+        private Reply getMore(final ByteBuffer pBuf) {
+            pBuf.getInt(); // zero
+            readCString(pBuf);
+            final int numberToReturn = pBuf.getInt();
+            final long cursorId = pBuf.getLong();
+
+            final Cursor cursor = _cursors.get(cursorId);
+            if (cursor == null) return new Reply(0, new ArrayList<BSONObject>(), CURSOR_NOT_FOUND);
+
+            final List<BSONObject> batch = cursor.next((numberToReturn == 0) ? Integer.MAX_VALUE : Math.abs(numberToReturn));
+            if (cursor.remaining.hasNext()) return new Reply(cursorId, batch);
+
+            _cursors.remove(cursorId);
+            return new Reply(0, batch);
+        }
+
+        private void killCursors(final ByteBuffer pBuf) {
+            pBuf.getInt(); // zero
+            final int count = pBuf.getInt();
+            for (int idx=0; idx < count; idx++) _cursors.remove(pBuf.getLong());
+        }
+
+        private BSONObject command(final String pDb, final BSONObject pCmd) {
+            final String name = pCmd.keySet().iterator().next();
+            final BasicBSONObject res = new BasicBSONObject();
+
+            if (name.equalsIgnoreCase("getlasterror")) {
+                if (isTrue(pCmd.get("fsync")) || isTrue(pCmd.get("j"))) sync();
+                res.put("err", _lastError);
+                if (_lastError != null) res.put("code", _lastErrorCode);
+                res.put("n", 0);
+                res.put("ok", 1.0);
+
+            } else if (name.equalsIgnoreCase("count")) {
+                final Object query = pCmd.get("query");
+                long count = 0;
+                synchronized(_data) {
+                    final LinkedHashMap<Object, BSONObject> coll = _data.get(pDb + "." + pCmd.get(name));
+                    if (coll != null) {
+                        for (final BSONObject doc : coll.values())
+                        { if (query == null || matches(doc, (BSONObject)query)) count++; }
+                    }
+                }
+                res.put("n", (double)count);
+                res.put("ok", 1.0);
+
+            } else if (name.equalsIgnoreCase("drop")) {
+                final String ns = pDb + "." + pCmd.get(name);
+                final boolean found;
+                synchronized(_data) {
+                    found = _data.containsKey(ns);
+                    if (found) { final Op op = new Op(ns, null); op.apply(_data); _unsynced.add(op); }
+                }
+                if (found) { res.put("ns", ns); res.put("ok", 1.0); }
+                else { res.put("errmsg", "ns not found"); res.put("ok", 0.0); }
+
+            } else if (name.equalsIgnoreCase("fsync")) {
+                sync();
+                res.put("ok", 1.0);
+
+            } else if (name.equalsIgnoreCase("ismaster")) {
+                res.put("ismaster", true);
+                res.put("ok", 1.0);
+
+            } else {
+                res.put("errmsg", "no such cmd: " + name);
+                res.put("ok", 0.0);
+            }
+
+            return res;
+        }
+
+        private final Socket _socket;
+
+        // The error of the last write on this connection (for getlasterror).
+        private String _lastError;
+        private int _lastErrorCode;
+    }
+
+    /**
+     * The rest of a query's results.
+     */
+    private static final class Cursor {
+        private Cursor(final Iterator<BSONObject> pRemaining, final BSONObject pFields)
+        { remaining = pRemaining; fields = pFields; }
+
+        private synchronized List<BSONObject> next(final int pMax) {
+            final ArrayList<BSONObject> batch = new ArrayList<BSONObject>();
+            int size = 0;
+            while (batch.size() < pMax && size < MAX_REPLY_SIZE && remaining.hasNext()) {
+                final BSONObject doc = project(remaining.next(), fields);
+                size += BSON.encode(doc).length;
+                batch.add(doc);
+            }
+            return batch;
+        }
+
+        private final Iterator<BSONObject> remaining;
+        private final BSONObject fields;
+    }
+
+    private static final class Reply {
+        private Reply(final long pCursorId, final List<BSONObject> pDocs) { this(pCursorId, pDocs, 0); }
+
+        private Reply(final long pCursorId, final List<BSONObject> pDocs, final int pFlags)
+        { cursorId = pCursorId; docs = pDocs; flags = pFlags; }
+
+        private final long cursorId;
+        private final List<BSONObject> docs;
+        private final int flags;
+    }
+
+    /**
+     * An insert (doc set) or a drop (doc null) that can be replayed on a copy of the data.
+     */
+    private static final class Op {
+        private Op(final String pNs, final BSONObject pDoc) { ns = pNs; doc = pDoc; }
+
+        private void apply(final HashMap<String, LinkedHashMap<Object, BSONObject>> pData) {
+            if (doc == null) { pData.remove(ns); return; }
+
+            LinkedHashMap<Object, BSONObject> coll = pData.get(ns);
+            if (coll == null) { coll = new LinkedHashMap<Object, BSONObject>(); pData.put(ns, coll); }
+            coll.put(doc.get("_id"), doc);
+        }
+
+        private final String ns;
+        private final BSONObject doc;
+    }
+
+    private static void reply(final OutputStream pOut, final int pResponseTo, final Reply pReply) throws IOException {
+        final ArrayList<byte []> encoded = new ArrayList<byte []>(pReply.docs.size());
+        int length = 36;
+        for (final BSONObject doc : pReply.docs) { final byte [] bytes = BSON.encode(doc); encoded.add(bytes); length += bytes.length; }
+
+        final ByteBuffer buf = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        buf.putInt(length);
+        buf.putInt(_nextRequestId.incrementAndGet());
+        buf.putInt(pResponseTo);
+        buf.putInt(OP_REPLY);
+        buf.putInt(pReply.flags);
+        buf.putLong(pReply.cursorId);
+        buf.putInt(0); // startingFrom
+        buf.putInt(encoded.size());
+        for (final byte [] bytes : encoded) buf.put(bytes);
+
+        pOut.write(buf.array());
+        pOut.flush();
+    }
+
+    /**
+     * True if every condition in the query holds for the doc. Conditions are
+     * on top level fields, either a value or a document of operators.
+     */
+    private static boolean matches(final BSONObject pDoc, final BSONObject pQuery) {
+        for (final String field : pQuery.keySet()) {
+            final Object cond = pQuery.get(field);
+            final Object val = pDoc.get(field);
+
+            if (!(cond instanceof BSONObject) || !isOperators((BSONObject)cond)) {
+                if (!equal(val, cond)) return false;
+                continue;
+            }
+
+            final BSONObject ops = (BSONObject)cond;
+            for (final String op : ops.keySet()) {
+                final Object arg = ops.get(op);
+
+                if (op.equals("$in")) {
+                    boolean found = false;
+                    for (final String key : ((BSONObject)arg).keySet()) { if (equal(val, ((BSONObject)arg).get(key))) { found = true; break; } }
+                    if (!found) return false;
+                    continue;
+                }
+
+                if (val == null) return false;
+                final int cmp = compare(val, arg);
+
+                if (op.equals("$gt")) { if (cmp <= 0) return false; }
+                else if (op.equals("$gte")) { if (cmp < 0) return false; }
+                else if (op.equals("$lt")) { if (cmp >= 0) return false; }
+                else if (op.equals("$lte")) { if (cmp > 0) return false; }
+                else throw new IllegalArgumentException("unsupported query operator: " + op);
+            }
+        }
+        return true;
+    }
+
+    private static boolean isOperators(final BSONObject pObj) {
+        for (final String key : pObj.keySet()) { if (!key.startsWith("$")) return false; }
+        return !pObj.keySet().isEmpty();
+    }
+
+    private static boolean equal(final Object pA, final Object pB) {
+        if (pA instanceof Number && pB instanceof Number) return ((Number)pA).doubleValue() == ((Number)pB).doubleValue();
+        return (pA == null) ? pB == null : pA.equals(pB);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static int compare(final Object pA, final Object pB) {
+        if (pA instanceof Number && pB instanceof Number) return Double.compare(((Number)pA).doubleValue(), ((Number)pB).doubleValue());
+        if (pA instanceof Comparable && pA.getClass() == pB.getClass()) return ((Comparable<Object>)pA).compareTo(pB);
+        throw new IllegalArgumentException("can not compare: " + pA + " - " + pB);
+    }
+
+    /**
+     * Apply an include (or exclude) projection.
+     */
+    private static BSONObject project(final BSONObject pDoc, final BSONObject pFields) {
+        if (pFields == null || pFields.keySet().isEmpty()) return pDoc;
+
+        final HashSet<String> includes = new HashSet<String>();
+        final HashSet<String> excludes = new HashSet<String>();
+        for (final String field : pFields.keySet()) {
+            if (isTrue(pFields.get(field))) includes.add(field);
+            else excludes.add(field);
+        }
+        includes.remove("_id");
+
+        final BasicBSONObject result = new BasicBSONObject();
+        for (final String field : pDoc.keySet()) {
+            if (excludes.contains(field)) continue;
+            if (!includes.isEmpty() && !field.equals("_id") && !includes.contains(field)) continue;
+            result.put(field, pDoc.get(field));
+        }
+        return result;
+    }
+
+    private static boolean isTrue(final Object pVal) {
+        if (pVal instanceof Boolean) return (Boolean)pVal;
+        if (pVal instanceof Number) return ((Number)pVal).doubleValue() != 0;
+        return pVal != null;
+    }
+
+    private static String readCString(final ByteBuffer pBuf) {
+        final int start = pBuf.position();
+        while (pBuf.get() != 0) { }
+        try { return new String(pBuf.array(), start, pBuf.position() - start - 1, "UTF-8");
+        } catch (final UnsupportedEncodingException uee) { throw new IllegalStateException(uee); }
+    }
+
+    private static BSONObject readDocument(final ByteBuffer pBuf) {
+        final int start = pBuf.position();
+        final int length = pBuf.getInt(start);
+        pBuf.position(start + length);
+        return BSON.decode(Arrays.copyOfRange(pBuf.array(), start, start + length));
+    }
+
+    private static final int OP_REPLY = 1;
+    private static final int OP_INSERT = 2002;
+    private static final int OP_QUERY = 2004;
+    private static final int OP_GET_MORE = 2005;
+    private static final int OP_KILL_CURSORS = 2007;
+
+    private static final int CURSOR_NOT_FOUND = 1;
+    private static final int QUERY_FAILURE = 2;
+
+    private static final int DEFAULT_BATCH_SIZE = 101;
+    private static final int MAX_REPLY_SIZE = 4 * 1024 * 1024;
+
+    private static final AtomicLong _nextCursorId = new AtomicLong(0);
+    private static final AtomicInteger _nextRequestId = new AtomicInteger(0);
+
+    private final int _port;
+    private final long _syncDelay;
+    private final double _lossRate;
+    private final Random _random = new Random();
+
+    private ServerSocket _serverSocket;
+    private Thread _syncer;
+
+    private final HashSet<Socket> _connections = new HashSet<Socket>();
+    private final ConcurrentHashMap<Long, Cursor> _cursors = new ConcurrentHashMap<Long, Cursor>();
+
+    // The live data, what is on disk and the writes in between. Guarded by _data.
+    private final HashMap<String, LinkedHashMap<Object, BSONObject>> _data = new HashMap<String, LinkedHashMap<Object, BSONObject>>();
+    private final HashMap<String, LinkedHashMap<Object, BSONObject>> _durable = new HashMap<String, LinkedHashMap<Object, BSONObject>>();
+    private final ArrayList<Op> _unsynced = new ArrayList<Op>();
+}
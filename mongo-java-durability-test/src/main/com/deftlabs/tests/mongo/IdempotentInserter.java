@@ -0,0 +1,99 @@
+/**
+ * Copyright 2011, Deft Labs.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.deftlabs.tests.mongo;
+
+// Mongo
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import org.bson.types.ObjectId;
+
+// Java
+import java.util.List;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Inserts batches so they can be retried without creating duplicates.
+ *
+ * Every task gets its _id before the first attempt (assignId), and the _id is
+ * kept with the task from then on. When a write fails we can not tell which
+ * tasks made it, so before a batch is sent again the ids are looked up with
+ * one $in query and only the tasks that are missing are sent.
+ */
+public final class IdempotentInserter {
+
+    public IdempotentInserter(final DurabilityMode pMode) { _mode = pMode; }
+
+    /**
+     * Give the task a stable _id if it does not have one.
+     */
+    public static void assignId(final DBObject pTask)
+    { if (pTask.get("_id") == null) pTask.put("_id", ObjectId.get()); }
+
+    /**
+     * Insert the batch. If the batch may have (partly) landed already - it is
+     * a retry or a replay - only the tasks that are not found are sent. Returns
+     * the number of tasks sent.
+     */
+    public int insert(  final DBCollection pCollection,
+                        final List<DBObject> pBatch,
+                        final boolean pMayHaveLanded)
+    {
+        List<DBObject> toSend = pBatch;
+
+        if (pMayHaveLanded) {
+            final HashSet<Object> found = findIds(pCollection, pBatch);
+            _skipped.addAndGet(found.size());
+
+            if (!found.isEmpty()) {
+                toSend = new ArrayList<DBObject>(pBatch.size() - found.size());
+                for (final DBObject task : pBatch) { if (!found.contains(task.get("_id"))) toSend.add(task); }
+            }
+        }
+
+        if (toSend.isEmpty()) return 0;
+
+        _mode.insert(pCollection, toSend);
+        return toSend.size();
+    }
+
+    /**
+     * The number of tasks not sent because they were already there.
+     */
+    public long getSkipped() { return _skipped.get(); }
+
+    private static HashSet<Object> findIds(final DBCollection pCollection, final List<DBObject> pBatch) {
+        final ArrayList<Object> ids = new ArrayList<Object>(pBatch.size());
+        for (final DBObject task : pBatch) ids.add(task.get("_id"));
+
+        final HashSet<Object> found = new HashSet<Object>();
+
+        final DBCursor cur
+        = pCollection.find(new BasicDBObject("_id", new BasicDBObject("$in", ids)), new BasicDBObject("_id", 1));
+
+        try { while (cur.hasNext()) found.add(cur.next().get("_id"));
+        } finally { cur.close(); }
+
+        return found;
+    }
+
+    private final DurabilityMode _mode;
+    private final AtomicLong _skipped = new AtomicLong(0);
+}
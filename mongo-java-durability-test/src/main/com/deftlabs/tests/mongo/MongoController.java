@@ -0,0 +1,47 @@
+/**
+ * Copyright 2011, Deft Labs.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.deftlabs.tests.mongo;
+
+/**
+ * Starts, crashes and stops the server the durability test writes to.
+ *
+ * MongodController runs a real mongod. FakeMongod is an in-JVM server that
+ * speaks enough of the wire protocol for the test, so the client side can be
+ * tested on a box without Mongo.
+ */
+public interface MongoController {
+
+    /**
+     * Start the server. It may take a moment before it accepts connections.
+     */
+    public void start() throws Exception;
+
+    /**
+     * Crash the server (kill -9). Writes that were not synced may be lost.
+     */
+    public void kill() throws Exception;
+
+    /**
+     * Shut the server down cleanly.
+     */
+    public void stop() throws Exception;
+
+    /**
+     * The port the server listens on (on 127.0.0.1).
+     */
+    public int getPort();
+}
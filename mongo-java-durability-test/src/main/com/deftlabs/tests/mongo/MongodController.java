@@ -0,0 +1,67 @@
+/**
+ * Copyright 2011, Deft Labs.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.deftlabs.tests.mongo;
+
+// Java
+import java.io.File;
+
+/**
+ * Runs a real mongod (with journaling) from the path. Crashing it is a
+ * killall -9, so do not run this on a box with a mongod you care about.
+ */
+public final class MongodController implements MongoController {
+
+    /**
+     * @param pPort The port mongod listens on.
+     * @param pSyncDelay The mongod --syncdelay in seconds.
+     */
+    public MongodController(final int pPort, final int pSyncDelay) {
+        _port = pPort;
+        _syncDelay = pSyncDelay;
+    }
+
+    public synchronized void start() throws Exception {
+        deleteLockFile();
+        _process = Runtime.getRuntime().exec(new String [] { "mongod", "--dur", "--logappend", "--logpath", "/tmp/mongo-dur.log", "--port", Integer.toString(_port), "--syncdelay", Integer.toString(_syncDelay)  }, null, null);
+    }
+
+    public synchronized void kill() throws Exception {
+        if (_process != null) {
+            Runtime.getRuntime().exec(new String [] { "killall", "-9", "mongod" }, null, null);
+           _process.destroy();
+           _process = null;
+        }
+
+        deleteLockFile();
+    }
+
+    public synchronized void stop() throws Exception {
+        if (_process != null) { _process.destroy(); _process = null; }
+        deleteLockFile();
+    }
+
+    public int getPort() { return _port; }
+
+    private static void deleteLockFile() {
+        final File lockFile = new File("/data/db/", "mongod.lock");
+        if (lockFile.exists()) lockFile.delete();
+    }
+
+    private final int _port;
+    private final int _syncDelay;
+    private Process _process;
+}
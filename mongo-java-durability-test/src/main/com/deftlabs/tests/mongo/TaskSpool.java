@@ -0,0 +1,293 @@
+/**
+ * Copyright 2011, Deft Labs.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.deftlabs.tests.mongo;
+
+// Mongo
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import org.bson.BSON;
+
+// Java
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A local write-ahead spool for tasks. Tasks are appended to memory-mapped,
+ * append-only segment files, so producers write at memory/disk speed and never
+ * wait on the database. The writer polls tasks in the order they were
+ * appended and acks them once they are safely in Mongo.
+ *
+ * Each record is [int length][byte state][bson]. The length is written last,
+ * so a record is only visible once it is complete. Acking a record flips its
+ * state byte in place, so acks can happen in any order and from any thread.
+ * A segment is deleted (and unmapped) once it is full and every record in it
+ * is acked.
+ *
+ * Opening a spool directory that has segments in it (e.g. after the client
+ * died) replays every record that was not acked. A record that was written to
+ * Mongo but not acked yet is replayed too, so the consumer has to handle
+ * duplicates.
+ *
+ * The mapped pages survive a crash of the JVM. Call sync() (or close) if
+ * they also have to survive a crash of the box.
+ */
+public final class TaskSpool {
+
+    public TaskSpool(final File pDir, final int pSegmentSize) throws IOException {
+        _dir = pDir;
+        _segmentSize = pSegmentSize;
+
+        if (!_dir.exists() && !_dir.mkdirs()) throw new IOException("unable to create spool dir: " + _dir);
+
+        final File [] files = _dir.listFiles();
+        Arrays.sort(files);
+
+        for (final File file : files) {
+            if (!file.getName().startsWith(PREFIX)) continue;
+            final Segment segment = new Segment(file, Long.parseLong(file.getName().substring(PREFIX.length())));
+            segment.recover();
+            segment.recoveredEnd = segment.writePos;
+            _pending.addAndGet(segment.outstanding.get());
+            _segments.add(segment);
+            _nextSequence = segment.sequence + 1;
+        }
+
+        // Everything but the last segment is full.
+        for (final Segment segment : _segments) segment.sealed = true;
+
+        if (_segments.isEmpty()) _segments.add(newSegment());
+        else _segments.getLast().sealed = false;
+
+        for (final Segment segment : new LinkedList<Segment>(_segments)) deleteIfDone(segment);
+    }
+
+    /**
+     * Add a task to the end of the spool.
+     */
+    public synchronized void append(final DBObject pTask) throws IOException {
+        final byte [] bytes = BSON.encode(pTask);
+        final int size = HEADER_SIZE + bytes.length;
+
+        if (size > _segmentSize - HEADER_SIZE) throw new IllegalArgumentException("task too large for the spool: " + bytes.length);
+
+        Segment segment = _segments.getLast();
+
+        // Leave room for the zero length that marks the end of the segment.
+        if (segment.writePos + size > _segmentSize - HEADER_SIZE) {
+            segment.sealed = true;
+            segment.buffer.force();
+            deleteIfDone(segment);
+            segment = newSegment();
+            _segments.add(segment);
+        }
+
+        final ByteBuffer buf = segment.buffer.duplicate();
+        buf.position(segment.writePos + HEADER_SIZE);
+        buf.put(bytes);
+        segment.buffer.put(segment.writePos + 4, PENDING);
+        segment.buffer.putInt(segment.writePos, bytes.length);
+
+        segment.writePos += size;
+        segment.outstanding.incrementAndGet();
+        _pending.incrementAndGet();
+    }
+
+    /**
+     * Read up to max tasks that have not been handed out yet, in append order.
+     * Returns the number added to the list.
+     */
+    public synchronized int poll(final List<Entry> pEntries, final int pMax) {
+        int count = 0;
+
+        for (final Segment segment : _segments) {
+            while (count < pMax && segment.readPos < segment.writePos) {
+                final int offset = segment.readPos;
+                final int length = segment.buffer.getInt(offset);
+                segment.readPos += HEADER_SIZE + length;
+
+                if (segment.buffer.get(offset + 4) != PENDING) continue;
+
+                final byte [] bytes = new byte[length];
+                final ByteBuffer buf = segment.buffer.duplicate();
+                buf.position(offset + HEADER_SIZE);
+                buf.get(bytes);
+
+                final BasicDBObject task = new BasicDBObject();
+                task.putAll(BSON.decode(bytes));
+
+                pEntries.add(new Entry(task, segment, offset, offset < segment.recoveredEnd));
+                count++;
+            }
+
+            if (count == pMax) break;
+        }
+
+        return count;
+    }
+
+    /**
+     * Mark the task as done. It will not be replayed. Acking an entry twice
+     * does nothing.
+     *
+     * This does not take the lock. It is an absolute put of the record's state
+     * byte, which does not touch the position of the shared buffer, and no
+     * other thread writes that byte: append wrote it (and the length after it)
+     * before the record could be polled, under the same lock as poll, so the
+     * record is complete and visible here. Appends only write past writePos.
+     * The segment is not unmapped before this put either: it is only deleted
+     * once outstanding reaches zero, which this ack's decrement comes after.
+     */
+    public void ack(final Entry pEntry) {
+        if (pEntry._acked) return;
+        pEntry._acked = true;
+
+        pEntry._segment.buffer.put(pEntry._offset + 4, ACKED);
+        _pending.decrementAndGet();
+        if (pEntry._segment.outstanding.decrementAndGet() == 0) deleteIfDone(pEntry._segment);
+    }
+
+    /**
+     * The number of tasks appended and not acked yet (including those handed out).
+     */
+    public int pending() { return _pending.get(); }
+
+    /**
+     * Force the mapped segments to disk.
+     */
+    public synchronized void sync() { for (final Segment segment : _segments) segment.buffer.force(); }
+
+    /**
+     * Sync and unmap the segments. The spool (and any entry from it) must not
+     * be used after this; open a new one on the directory to replay it.
+     */
+    public synchronized void close() throws IOException {
+        sync();
+        for (final Segment segment : _segments) unmap(segment.buffer);
+        _segments.clear();
+    }
+
+    /**
+     * A task read from the spool. Pass it back to ack once it is written.
+     */
+    public static final class Entry {
+        private Entry(final DBObject pTask, final Segment pSegment, final int pOffset, final boolean pRecovered)
+        { _task = pTask; _segment = pSegment; _offset = pOffset; _recovered = pRecovered; }
+
+        public DBObject getTask() { return _task; }
+
+        /**
+         * True if the task was replayed from a spool left by an earlier run,
+         * which means it may already have been written.
+         */
+        public boolean isRecovered() { return _recovered; }
+
+        private final DBObject _task;
+        private final Segment _segment;
+        private final int _offset;
+        private final boolean _recovered;
+        private boolean _acked;
+    }
+
+    private synchronized void deleteIfDone(final Segment pSegment) {
+        if (!pSegment.sealed || pSegment.outstanding.get() != 0) return;
+        if (!_segments.remove(pSegment)) return;
+
+        // Unmap before the delete, or the file (and its pages) stay around
+        // until the buffer is collected.
+        unmap(pSegment.buffer);
+        pSegment.file.delete();
+    }
+
+    /**
+     * Release a mapping now instead of when the buffer is collected. Uses
+     * Unsafe.invokeCleaner on Java 9+ and the buffer's cleaner before that. If
+     * neither is there the mapping is left to the collector.
+     */
+    private static void unmap(final MappedByteBuffer pBuffer) {
+        try {
+            final Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            try {
+                final Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+                final Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+                theUnsafe.setAccessible(true);
+                invokeCleaner.invoke(theUnsafe.get(null), pBuffer);
+                return;
+            } catch (final NoSuchMethodException nsme) { } // Before Java 9.
+
+            final Method cleanerMethod = pBuffer.getClass().getMethod("cleaner");
+            cleanerMethod.setAccessible(true);
+            final Object cleaner = cleanerMethod.invoke(pBuffer);
+            if (cleaner != null) cleaner.getClass().getMethod("clean").invoke(cleaner);
+        } catch (final Exception e) { } // Left to the collector.
+    }
+
+    private Segment newSegment() throws IOException
+    { return new Segment(new File(_dir, String.format(PREFIX + "%019d", _nextSequence)), _nextSequence++); }
+
+    private final class Segment {
+        private Segment(final File pFile, final long pSequence) throws IOException {
+            file = pFile;
+            sequence = pSequence;
+
+            final RandomAccessFile raf = new RandomAccessFile(pFile, "rw");
+            try { buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, _segmentSize);
+            } finally { raf.close(); }
+        }
+
+        /**
+         * Find the end of the records and count the ones that were not acked.
+         */
+        private void recover() {
+            while (writePos + HEADER_SIZE <= _segmentSize) {
+                final int length = buffer.getInt(writePos);
+                if (length <= 0) break;
+                if (buffer.get(writePos + 4) == PENDING) outstanding.incrementAndGet();
+                writePos += HEADER_SIZE + length;
+            }
+        }
+
+        private final File file;
+        private final long sequence;
+        private final MappedByteBuffer buffer;
+        private final AtomicInteger outstanding = new AtomicInteger(0);
+        private int writePos;
+        private int readPos;
+        private int recoveredEnd;
+        private volatile boolean sealed;
+    }
+
+    private static final String PREFIX = "spool-";
+    private static final int HEADER_SIZE = 5;
+    private static final byte PENDING = 1;
+    private static final byte ACKED = 2;
+
+    private final File _dir;
+    private final int _segmentSize;
+    private final LinkedList<Segment> _segments = new LinkedList<Segment>();
+    private final AtomicInteger _pending = new AtomicInteger(0);
+    private long _nextSequence;
+}
@@ -0,0 +1,307 @@
+/**
+ * Copyright 2011, Deft Labs.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.deftlabs.examples.mongo;
+
+// Mongo
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+
+// Java
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A client side cache for repeated $near and $nearSphere queries.
+ *
+ * Entries are keyed by the geohash cell of the query point, the query type
+ * and the $maxDistance. An entry holds every document within $maxDistance
+ * of any point in the cell: it is filled with one $within ($center or
+ * $centerSphere) query around the middle of the cell, with the radius grown
+ * by the size of the cell. A lookup filters and sorts those documents by
+ * their distance from the actual query point, so it returns what the server
+ * would (as long as the server's $near limit of 100 is not reached), in
+ * microseconds, for any point in a cached cell.
+ *
+ * Entries expire after the ttl and the least recently used ones are evicted
+ * past the max entries. Writes must call invalidate, which drops every entry
+ * whose area covers the written location or that holds the written document
+ * (in case it moved).
+ *
+ * The documents returned are shared by the cache and must not be modified.
+ */
+public final class GeoQueryCache {
+
+    /**
+     * @param pCollection The collection with the 2d index.
+     * @param pLocField The [ long, lat ] field.
+     * @param pCellBits The bits of each coordinate in the geohash (e.g. 16 is
+     * a cell of 0.0055 by 0.0027 degrees). Bigger cells are hit more often but
+     * fetch more documents per entry.
+     * @param pTtl The millis an entry is used for.
+     * @param pMaxEntries The max number of entries.
+     */
+    public GeoQueryCache(   final DBCollection pCollection,
+                            final String pLocField,
+                            final int pCellBits,
+                            final long pTtl,
+                            final int pMaxEntries)
+    {
+        _collection = pCollection;
+        _locField = pLocField;
+        _cellBits = pCellBits;
+        _cells = 1L << pCellBits;
+        _ttl = pTtl;
+        _maxEntries = pMaxEntries;
+
+        _entries = new LinkedHashMap<Key, CacheEntry>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+            protected boolean removeEldestEntry(final Map.Entry<Key, CacheEntry> pEldest) { return size() > _maxEntries; }
+        };
+    }
+
+    /**
+     * The results of { loc: { $near: point, $maxDistance: max } } (flat distance, in degrees).
+     */
+    public List<DBObject> near(final double [] pPoint, final double pMaxDistance)
+    { return find(false, pPoint, pMaxDistance); }
+
+    /**
+     * The results of { loc: { $nearSphere: point, $maxDistance: max } } (distance in radians).
+     */
+    public List<DBObject> nearSphere(final double [] pPoint, final double pMaxDistance)
+    { return find(true, pPoint, pMaxDistance); }
+
+    /**
+     * A document was written at the location. If pField is not null, the
+     * entries that hold a document with the same pField value (its old
+     * version) are dropped as well.
+     */
+    public synchronized void invalidate(final String pField, final Object pValue, final double [] pLocation) {
+        _generation++;
+        final Iterator<CacheEntry> iter = _entries.values().iterator();
+        while (iter.hasNext()) {
+            final CacheEntry entry = iter.next();
+            if (entry.covers(pLocation) || (pField != null && entry.holds(pField, pValue))) {
+                iter.remove();
+                _invalidations++;
+            }
+        }
+    }
+
+    public synchronized void clear() { _generation++; _entries.clear(); }
+
+    public synchronized long getHits() { return _hits; }
+
+    public synchronized long getMisses() { return _misses; }
+
+    public synchronized long getInvalidations() { return _invalidations; }
+
+    private List<DBObject> find(final boolean pSphere, final double [] pPoint, final double pMaxDistance) {
+        final long x = cell(pPoint[0], -180, 360);
+        final long y = cell(pPoint[1], -90, 180);
+        final Key key = new Key(pSphere, interleave(x, y), pMaxDistance);
+
+        CacheEntry entry;
+        final long generation;
+        synchronized(this) {
+            generation = _generation;
+            entry = _entries.get(key);
+            if (entry != null && System.currentTimeMillis() - entry._created > _ttl) {
+                _entries.remove(key);
+                entry = null;
+            }
+            if (entry != null) _hits++; else _misses++;
+        }
+
+        if (entry == null) {
+            // Fetched outside the lock. Two threads may both fetch the same cell.
+            entry = fetch(pSphere, x, y, pMaxDistance);
+
+            // Not kept if there was a write while it was being fetched.
+            synchronized(this) { if (generation == _generation) _entries.put(key, entry); }
+        }
+
+        return entry.filter(pPoint);
+    }
+
+    private CacheEntry fetch(final boolean pSphere, final long pX, final long pY, final double pMaxDistance) {
+        final double halfWidth = 360.0 / _cells / 2;
+        final double halfHeight = 180.0 / _cells / 2;
+        final double [] center = new double[] { -180 + (pX * 2 + 1) * halfWidth, -90 + (pY * 2 + 1) * halfHeight };
+
+        // Every point in the cell is within this of the center.
+        final double radius
+        = pSphere ? pMaxDistance + Math.toRadians(halfWidth + halfHeight) : pMaxDistance + Math.hypot(halfWidth, halfHeight);
+
+        final ArrayList<Object> circle = new ArrayList<Object>();
+        circle.add(center);
+        circle.add(radius);
+
+        final DBObject query
+        = new BasicDBObject(_locField, new BasicDBObject("$within", new BasicDBObject(pSphere ? "$centerSphere" : "$center", circle)));
+
+        final List<DBObject> docs = _collection.find(query).toArray();
+        final double [] lngs = new double[docs.size()];
+        final double [] lats = new double[docs.size()];
+
+        for (int idx=0; idx < docs.size(); idx++) {
+            final double [] loc = location(docs.get(idx).get(_locField));
+            lngs[idx] = loc[0];
+            lats[idx] = loc[1];
+        }
+
+        return new CacheEntry(pSphere, center, radius, pMaxDistance, docs, lngs, lats);
+    }
+
+    private final class CacheEntry {
+        private CacheEntry( final boolean pSphere,
+                            final double [] pCenter,
+                            final double pRadius,
+                            final double pMaxDistance,
+                            final List<DBObject> pDocs,
+                            final double [] pLngs,
+                            final double [] pLats)
+        {
+            _sphere = pSphere;
+            _center = pCenter;
+            _radius = pRadius;
+            _maxDistance = pMaxDistance;
+            _docs = pDocs;
+            _lngs = pLngs;
+            _lats = pLats;
+        }
+
+        /**
+         * The documents within the max distance of the point, nearest first.
+         */
+        private List<DBObject> filter(final double [] pPoint) {
+            final double [] distances = new double[_docs.size()];
+            final ArrayList<Integer> matches = new ArrayList<Integer>();
+
+            for (int idx=0; idx < _docs.size(); idx++) {
+                distances[idx] = distance(_sphere, pPoint[0], pPoint[1], _lngs[idx], _lats[idx]);
+                if (distances[idx] <= _maxDistance) matches.add(idx);
+            }
+
+            Collections.sort(matches, new Comparator<Integer>() {
+                public int compare(final Integer pA, final Integer pB) { return Double.compare(distances[pA], distances[pB]); }
+            });
+
+            final int count = Math.min(matches.size(), NEAR_LIMIT);
+            final ArrayList<DBObject> results = new ArrayList<DBObject>(count);
+            for (int idx=0; idx < count; idx++) results.add(_docs.get(matches.get(idx)));
+            return results;
+        }
+
+        private boolean covers(final double [] pLocation)
+        { return distance(_sphere, _center[0], _center[1], pLocation[0], pLocation[1]) <= _radius; }
+
+        private boolean holds(final String pField, final Object pValue) {
+            for (final DBObject doc : _docs) if (pValue.equals(doc.get(pField))) return true;
+            return false;
+        }
+
+        private final boolean _sphere;
+        private final double [] _center;
+        private final double _radius;
+        private final double _maxDistance;
+        private final List<DBObject> _docs;
+        private final double [] _lngs;
+        private final double [] _lats;
+        private final long _created = System.currentTimeMillis();
+    }
+
+    private static final class Key {
+        private Key(final boolean pSphere, final long pHash, final double pMaxDistance)
+        { _sphere = pSphere; _hash = pHash; _maxDistance = pMaxDistance; }
+
+        @Override
+        public boolean equals(final Object pOther) {
+            if (!(pOther instanceof Key)) return false;
+            final Key other = (Key)pOther;
+            return _sphere == other._sphere && _hash == other._hash && Double.compare(_maxDistance, other._maxDistance) == 0;
+        }
+
+        @Override
+        public int hashCode() { return Arrays.hashCode(new long[] { _hash, Double.doubleToLongBits(_maxDistance), _sphere ? 1 : 0 }); }
+
+        private final boolean _sphere;
+        private final long _hash;
+        private final double _maxDistance;
+    }
+
+    /**
+     * Flat distance in degrees, or great circle distance in radians.
+     */
+    static double distance(final boolean pSphere, final double pLng1, final double pLat1, final double pLng2, final double pLat2) {
+        if (!pSphere) return Math.hypot(pLng1 - pLng2, pLat1 - pLat2);
+
+        final double lat1 = Math.toRadians(pLat1);
+        final double lat2 = Math.toRadians(pLat2);
+        final double sinLat = Math.sin((lat2 - lat1) / 2);
+        final double sinLng = Math.sin(Math.toRadians(pLng2 - pLng1) / 2);
+        final double a = sinLat * sinLat + Math.cos(lat1) * Math.cos(lat2) * sinLng * sinLng;
+        return 2 * Math.asin(Math.min(1, Math.sqrt(a)));
+    }
+
+    /**
+     * The [ long, lat ] of a loc value (a double [] or a list of numbers).
+     */
+    static double [] location(final Object pLoc) {
+        if (pLoc instanceof double []) return (double [])pLoc;
+
+        final List<?> loc = (List<?>)pLoc;
+        return new double[] { ((Number)loc.get(0)).doubleValue(), ((Number)loc.get(1)).doubleValue() };
+    }
+
+    private long cell(final double pValue, final double pMin, final double pRange) {
+        final long cell = (long)((pValue - pMin) / pRange * _cells);
+        return Math.max(0, Math.min(_cells - 1, cell));
+    }
+
+    /**
+     * The geohash of the cell: the bits of x and y interleaved.
+     */
+    private long interleave(final long pX, final long pY) {
+        long hash = 0;
+        for (int bit=_cellBits - 1; bit >= 0; bit--) hash = (hash << 2) | (((pX >>> bit) & 1) << 1) | ((pY >>> bit) & 1);
+        return hash;
+    }
+
+    // The most documents the server returns for $near.
+    private static final int NEAR_LIMIT = 100;
+
+    private final DBCollection _collection;
+    private final String _locField;
+    private final int _cellBits;
+    private final long _cells;
+    private final long _ttl;
+    private final int _maxEntries;
+
+    private final LinkedHashMap<Key, CacheEntry> _entries;
+    private long _hits;
+    private long _misses;
+    private long _invalidations;
+    private long _generation;
+}
@@ -28,10 +28,12 @@ import com.mongodb.BasicDBObject;
 import org.junit.Test;
 import org.junit.Before;
 import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
 
 // Java
 import java.util.List;
 import java.util.LinkedList;
+import java.io.StringReader;
 
 /**
  * An example of how to use a geospacial index.
@@ -39,11 +41,13 @@ import java.util.LinkedList;
 public final class GeospacialExample {
 
     private Mongo _mongo;
+    private GeoQueryCache _cache;
 
     @Before
     public void setupMongo() throws Exception {
         _mongo = new Mongo(new DBAddress("127.0.0.1", 27017, "geospacial"));
         getCollection().ensureIndex(new BasicDBObject("loc", "2d"), "geospacialIdx");
+        _cache = new GeoQueryCache(getCollection(), "loc", CACHE_CELL_BITS, CACHE_TTL, CACHE_MAX_ENTRIES);
         addVenues();
     }
 
@@ -166,19 +170,166 @@ public final class GeospacialExample {
         assertEquals(count, 11);
     }
 
-    private void addVenues() {
-        addVenue("10gen Office",  new double[] { -73.99171, 40.738868  });
-        addVenue("Flatiron Building", new double[] { -73.988135, 40.741404 });
-        addVenue("Players Club", new double[] { -73.997812, 40.739128 });
-        addVenue("City Bakery ", new double[] { -73.992491, 40.738673 });
-        addVenue("Splash Bar", new double[] { -73.992491, 40.738673 });
-        addVenue("Momofuku Milk Bar", new double[] { -73.985839, 40.731698 });
-        addVenue("Shake Shack", new double[] { -73.98820, 40.74164 });
-        addVenue("Penn Station", new double[] {  -73.99408, 40.75057 });
-        addVenue("Empire State Building", new double[] { -73.98602, 40.74894 });
-        addVenue("Washington Square Park", new double[] { -73.99756, 40.73083 });
-        addVenue("Ulaanbaatar, Mongolia", new double[] { 106.9154, 47.9245 });
-        addVenue("Maplewood, NJ", new double[] { -74.2713, 40.73137 });
+    @Test
+    public void cachedNearWithMaxDistance() {
+        assertEquals(_cache.near(new double[] { -73.99171, 40.738868 }, 0.01).size(), 8);
+    }
+
+    @Test
+    public void fastCached() {
+        for (int idx=0; idx < 10000; idx++) cachedNearSphereWithMaxDistance();
+        assertEquals(_cache.getMisses(), 1);
+    }
+
+    @Test
+    public void cachedNearSphereWithMaxDistance() {
+        assertEquals(_cache.nearSphere(new double[] { -73.99171, 40.738868 }, 0.003712240453784).size(), 11);
+    }
+
+    @Test
+    public void cacheInvalidation() {
+        final double [] point = new double[] { -73.99171, 40.738868 };
+        assertEquals(_cache.nearSphere(point, 0.003712240453784).size(), 11);
+
+        try {
+            // Union Square
+            addVenue("Cache Test Venue", new double[] { -73.990479, 40.735863 });
+            assertEquals(_cache.nearSphere(point, 0.003712240453784).size(), 12);
+
+            // Move it to Mongolia.
+            addVenue("Cache Test Venue", new double[] { 106.9154, 47.9245 });
+            assertEquals(_cache.nearSphere(point, 0.003712240453784).size(), 11);
+
+        } finally {
+            getCollection().remove(new BasicDBObject("name", "Cache Test Venue"));
+            _cache.invalidate("name", "Cache Test Venue", new double[] { 106.9154, 47.9245 });
+        }
+
+        assertEquals(_cache.nearSphere(point, 0.003712240453784).size(), 11);
+    }
+
+    @Test
+    public void indexedNearWithMaxDistance() {
+        assertEquals(loadIndex().near(new double[] { -73.99171, 40.738868 }, 0.01).size(), 8);
+    }
+
+    @Test
+    public void indexedWithinBox() {
+        assertEquals(loadIndex().withinBox(new double[] { -73.99756, 40.73083 }, new double[] { -73.988135, 40.741404 }).size(), 5);
+    }
+
+    @Test
+    public void indexedWithinPolygon() {
+        final LinkedList<double[]> polygon = new LinkedList<double[]>();
+        polygon.addLast(new double[] {  -73.99756, 40.73083 });
+        polygon.addLast(new double[] { -73.988135, 40.741404 });
+        polygon.addLast(new double[] { -73.99171, 40.738868  });
+
+        assertEquals(loadIndex().withinPolygon(polygon).size(), 3);
+    }
+
+    @Test
+    public void indexedWithinCircle() {
+        assertEquals(loadIndex().withinCenter(new double[] { -73.99171, 40.738868 }, 0.01).size(), 8);
+    }
+
+    @Test
+    public void indexedNearSphereWithMaxDistance() {
+        assertEquals(loadIndex().nearSphere(new double[] { -73.99171, 40.738868 }, 0.003712240453784).size(), 11);
+    }
+
+    @Test
+    public void indexedNearSphereAcrossTheAntimeridian() {
+        final VenueIndex index = new VenueIndex("loc", INDEX_CELL_SIZE);
+        index.put("Taveuni, Fiji", new double[] { 179.99, -16.85 });
+        index.put("Savusavu, Fiji", new double[] { 179.33, -16.78 });
+
+        // About 2 km east of Taveuni, across the 180th meridian.
+        assertEquals(index.nearSphere(new double[] { -179.99, -16.85 }, 0.0005).size(), 1);
+        assertEquals(index.nearSphere(new double[] { -179.99, -16.85 }, 0.02).size(), 2);
+    }
+
+    @Test
+    public void indexFollowsTheOplog() throws Exception {
+        // Needs a replica set member or a master (there is no oplog otherwise).
+        final DB local = _mongo.getDB("local");
+        final DBCollection oplog
+        = local.collectionExists("oplog.rs") ? local.getCollection("oplog.rs") : local.getCollection("oplog.$main");
+        assumeTrue(local.collectionExists(oplog.getName()));
+
+        final double [] point = new double[] { -73.99171, 40.738868 };
+        final VenueIndex index = new VenueIndex("loc", INDEX_CELL_SIZE);
+        index.start(getCollection(), oplog);
+
+        try {
+            assertEquals(index.nearSphere(point, 0.003712240453784).size(), 11);
+
+            // Union Square
+            addVenue("Index Test Venue", new double[] { -73.990479, 40.735863 });
+            assertEquals(awaitNearSphere(index, point, 12), 12);
+
+            // Move it to Mongolia.
+            addVenue("Index Test Venue", new double[] { 106.9154, 47.9245 });
+            assertEquals(awaitNearSphere(index, point, 11), 11);
+
+            getCollection().remove(new BasicDBObject("name", "Index Test Venue"));
+            final int before = index.size();
+            final long deadline = System.currentTimeMillis() + FOLLOW_TIMEOUT;
+            while (index.size() == before && System.currentTimeMillis() < deadline) Thread.sleep(10);
+            assertEquals(index.size(), before - 1);
+
+        } finally {
+            try { getCollection().remove(new BasicDBObject("name", "Index Test Venue"));
+            } finally { index.stop(); }
+        }
+    }
+
+    /**
+     * The nearSphere count once it is the expected one, or when the follower
+     * has had FOLLOW_TIMEOUT to get there.
+     */
+    private int awaitNearSphere(final VenueIndex pIndex, final double [] pPoint, final int pExpected) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + FOLLOW_TIMEOUT;
+        while (true) {
+            final int count = pIndex.nearSphere(pPoint, 0.003712240453784).size();
+            if (count == pExpected || System.currentTimeMillis() > deadline) return count;
+            Thread.sleep(10);
+        }
+    }
+
+    /**
+     * A VenueIndex mirror of the collection.
+     */
+    private VenueIndex loadIndex() {
+        final VenueIndex index = new VenueIndex("loc", INDEX_CELL_SIZE);
+        index.load(getCollection());
+        return index;
+    }
+
+    /**
+     * Upsert the venues in one batch (the index is already there).
+     */
+    private void addVenues() throws Exception {
+        final String venues
+        = "name,lng,lat\n"
+        + "10gen Office,-73.99171,40.738868\n"
+        + "Flatiron Building,-73.988135,40.741404\n"
+        + "Players Club,-73.997812,40.739128\n"
+        + "\"City Bakery \",-73.992491,40.738673\n"
+        + "Splash Bar,-73.992491,40.738673\n"
+        + "Momofuku Milk Bar,-73.985839,40.731698\n"
+        + "Shake Shack,-73.98820,40.74164\n"
+        + "Penn Station,-73.99408,40.75057\n"
+        + "Empire State Building,-73.98602,40.74894\n"
+        + "Washington Square Park,-73.99756,40.73083\n"
+        + "\"Ulaanbaatar, Mongolia\",106.9154,47.9245\n"
+        + "\"Maplewood, NJ\",-74.2713,40.73137\n";
+
+        final VenueLoader loader = new VenueLoader(getCollection(), "loc", LOAD_BATCH_SIZE, LOAD_CONNECTIONS, true, VenueLoader.Index.NONE);
+        final VenueLoader.Result result = loader.load(new StringReader(venues), VenueLoader.Format.CSV);
+        assertEquals(result.getWritten(), 12);
+
+        _cache.clear();
     }
 
     private void addVenue(  final String pName,
@@ -187,10 +338,24 @@ public final class GeospacialExample {
         final BasicDBObject loc = new BasicDBObject("name", pName);
         loc.put("loc", pLocation);
         getCollection().update(new BasicDBObject("name", pName), loc, true, false);
+        _cache.invalidate("name", pName, pLocation);
     }
 
     private DBCollection getCollection() {
         return _mongo.getDB("geospacial").getCollection("example");
     }
+
+    // A cell of about 0.0055 by 0.0027 degrees.
+    private static final int CACHE_CELL_BITS = 16;
+    private static final long CACHE_TTL = 60000;
+    private static final int CACHE_MAX_ENTRIES = 1000;
+
+    private static final double INDEX_CELL_SIZE = 0.01;
+
+    // How long the oplog follower gets to apply a write.
+    private static final long FOLLOW_TIMEOUT = 5000;
+
+    private static final int LOAD_BATCH_SIZE = 1000;
+    private static final int LOAD_CONNECTIONS = 2;
 }
 
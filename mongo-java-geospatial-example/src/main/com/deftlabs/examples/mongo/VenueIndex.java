@@ -0,0 +1,494 @@
+/**
+ * Copyright 2011, Deft Labs.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.deftlabs.examples.mongo;
+
+// Mongo
+import com.mongodb.BasicDBObject;
+import com.mongodb.Bytes;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+
+// Java
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * An in-memory mirror of a collection's 2d (loc) field that answers $near,
+ * $nearSphere, $within $box, $within $polygon and $within $center queries
+ * without going to the server. The results are the _id values of the
+ * matching documents, as the server would return them (nearest first and at
+ * most 100 for $near/$nearSphere, edges and corners included for $within).
+ *
+ * The points are kept in a grid of square cells, each holding its points in
+ * primitive double arrays, so a query only looks at the cells its shape
+ * overlaps. Pick a cell size near the usual query radius.
+ *
+ * load streams the ids and locations in with one query. start also follows
+ * the replication oplog (local.oplog.rs, or local.oplog.$main on a master)
+ * from where it was before the load, so inserts, updates and removes made
+ * after it are applied. put and remove can be used to keep it current
+ * without an oplog.
+ *
+ * This is thread safe. Queries share a read lock.
+ */
+public final class VenueIndex {
+
+    /**
+     * @param pLocField The [ long, lat ] field.
+     * @param pCellSize The cell width and height in degrees.
+     */
+    public VenueIndex(final String pLocField, final double pCellSize) {
+        _locField = pLocField;
+        _cellSize = pCellSize;
+    }
+
+    /**
+     * Stream the ids and locations of every document in.
+     */
+    public void load(final DBCollection pCollection) {
+        final DBCursor cur = pCollection.find(new BasicDBObject(), new BasicDBObject(_locField, 1)).batchSize(LOAD_BATCH_SIZE);
+        try {
+            while (cur.hasNext()) {
+                final DBObject doc = cur.next();
+                if (doc.get(_locField) != null) put(doc.get("_id"), GeoQueryCache.location(doc.get(_locField)));
+            }
+        } finally { cur.close(); }
+    }
+
+    /**
+     * Load the collection and keep following its changes in the oplog, until stop.
+     */
+    public synchronized void start(final DBCollection pCollection, final DBCollection pOplog) {
+        final String ns = pCollection.getFullName();
+
+        // Where the oplog is now, so nothing written during the load is missed.
+        final DBCursor last = pOplog.find().sort(new BasicDBObject("$natural", -1)).limit(1);
+        final Object lastTs = last.hasNext() ? last.next().get("ts") : null;
+        last.close();
+
+        load(pCollection);
+
+        _running = true;
+        _follower = new Thread(new Follower(pCollection, pOplog, ns, lastTs), "venue-index-follower");
+        _follower.setDaemon(true);
+        _follower.start();
+    }
+
+    /**
+     * Stop following the oplog. The driver's hasNext on a tailable cursor
+     * keeps asking for more (and ignores interrupts) until the cursor dies, so
+     * the follower's cursor is closed to get it out of there.
+     */
+    public synchronized void stop() throws InterruptedException {
+        _running = false;
+
+        final DBCursor cursor = _followCursor;
+        if (cursor != null) {
+            try { cursor.close(); } catch (final Throwable t) { /* nada */ }
+        }
+
+        if (_follower != null) { _follower.interrupt(); _follower.join(); _follower = null; }
+    }
+
+    /**
+     * Add the document at the location (or move it there).
+     */
+    public void put(final Object pId, final double [] pLoc) {
+        _lock.writeLock().lock();
+        try {
+            remove(pId);
+
+            final long key = key(pLoc[0], pLoc[1]);
+            Cell cell = _cells.get(key);
+            if (cell == null) { cell = new Cell(); _cells.put(key, cell); }
+            cell.add(pId, pLoc[0], pLoc[1]);
+            _locations.put(pId, new double[] { pLoc[0], pLoc[1] });
+
+        } finally { _lock.writeLock().unlock(); }
+    }
+
+    public void remove(final Object pId) {
+        _lock.writeLock().lock();
+        try {
+            final double [] loc = _locations.remove(pId);
+            if (loc == null) return;
+
+            final long key = key(loc[0], loc[1]);
+            final Cell cell = _cells.get(key);
+            cell.remove(pId);
+            if (cell._size == 0) _cells.remove(key);
+
+        } finally { _lock.writeLock().unlock(); }
+    }
+
+    public int size() {
+        _lock.readLock().lock();
+        try { return _locations.size();
+        } finally { _lock.readLock().unlock(); }
+    }
+
+    /**
+     * { loc: { $near: point, $maxDistance: max } } (flat distance, in degrees).
+     */
+    public List<Object> near(final double [] pPoint, final double pMaxDistance) {
+        return nearest(scan(pPoint[0] - pMaxDistance, pPoint[1] - pMaxDistance, pPoint[0] + pMaxDistance, pPoint[1] + pMaxDistance,
+                            new Shape() {
+                                public double match(final double pLng, final double pLat) {
+                                    final double distance = GeoQueryCache.distance(false, pPoint[0], pPoint[1], pLng, pLat);
+                                    return (distance <= pMaxDistance) ? distance : NO_MATCH;
+                                }
+                            }));
+    }
+
+    /**
+     * { loc: { $nearSphere: point, $maxDistance: max } } (distance in radians).
+     */
+    public List<Object> nearSphere(final double [] pPoint, final double pMaxDistance) {
+        final double latDelta = Math.toDegrees(pMaxDistance);
+        final double cos = Math.cos(Math.toRadians(Math.min(90, Math.abs(pPoint[1]) + latDelta)));
+
+        // Past a pole (or a whole hemisphere) every longitude can be in range.
+        final double lngDelta = (cos < 1e-9 || latDelta >= 90) ? 180 : Math.min(180, latDelta / cos);
+
+        final Shape shape = new Shape() {
+            public double match(final double pLng, final double pLat) {
+                final double distance = GeoQueryCache.distance(true, pPoint[0], pPoint[1], pLng, pLat);
+                return (distance <= pMaxDistance) ? distance : NO_MATCH;
+            }
+        };
+
+        final double minLng = pPoint[0] - lngDelta, maxLng = pPoint[0] + lngDelta;
+        final double minLat = pPoint[1] - latDelta, maxLat = pPoint[1] + latDelta;
+        final Matches matches = new Matches();
+
+        // The sphere wraps at +/-180, so a range past it is split in two. Each
+        // half only matches its own longitudes, in case it scans every cell.
+        if (lngDelta >= 180) scan(-180, minLat, 180, maxLat, shape, matches);
+        else if (minLng < -180 || maxLng > 180) {
+            final double west = (minLng < -180) ? minLng + 360 : minLng;
+            final double east = (maxLng > 180) ? maxLng - 360 : maxLng;
+            scan(west, minLat, 180, maxLat, lngRange(shape, west, 180), matches);
+            scan(-180, minLat, east, maxLat, lngRange(shape, -180, east), matches);
+        } else scan(minLng, minLat, maxLng, maxLat, shape, matches);
+
+        return nearest(matches);
+    }
+
+    /**
+     * { loc: { $within: { $box: [ lowerLeft, upperRight ] } } }
+     */
+    public List<Object> withinBox(final double [] pLowerLeft, final double [] pUpperRight) {
+        return ids(scan(pLowerLeft[0], pLowerLeft[1], pUpperRight[0], pUpperRight[1],
+                        new Shape() {
+                            public double match(final double pLng, final double pLat) {
+                                return (pLng >= pLowerLeft[0] && pLng <= pUpperRight[0] && pLat >= pLowerLeft[1] && pLat <= pUpperRight[1]) ? 0 : NO_MATCH;
+                            }
+                        }));
+    }
+
+    /**
+     * { loc: { $within: { $center: [ center, radius ] } } }
+     */
+    public List<Object> withinCenter(final double [] pCenter, final double pRadius) {
+        return ids(scan(pCenter[0] - pRadius, pCenter[1] - pRadius, pCenter[0] + pRadius, pCenter[1] + pRadius,
+                        new Shape() {
+                            public double match(final double pLng, final double pLat) {
+                                return (GeoQueryCache.distance(false, pCenter[0], pCenter[1], pLng, pLat) <= pRadius) ? 0 : NO_MATCH;
+                            }
+                        }));
+    }
+
+    /**
+     * { loc: { $within: { $polygon: points } } }
+     */
+    public List<Object> withinPolygon(final List<double []> pPolygon) {
+        final int count = pPolygon.size();
+        final double [] lngs = new double[count];
+        final double [] lats = new double[count];
+
+        double minLng = Double.MAX_VALUE, minLat = Double.MAX_VALUE, maxLng = -Double.MAX_VALUE, maxLat = -Double.MAX_VALUE;
+        for (int idx=0; idx < count; idx++) {
+            lngs[idx] = pPolygon.get(idx)[0];
+            lats[idx] = pPolygon.get(idx)[1];
+            minLng = Math.min(minLng, lngs[idx]);
+            minLat = Math.min(minLat, lats[idx]);
+            maxLng = Math.max(maxLng, lngs[idx]);
+            maxLat = Math.max(maxLat, lats[idx]);
+        }
+
+        return ids(scan(minLng, minLat, maxLng, maxLat,
+                        new Shape() {
+                            public double match(final double pLng, final double pLat) {
+                                return inPolygon(lngs, lats, pLng, pLat) ? 0 : NO_MATCH;
+                            }
+                        }));
+    }
+
+    /**
+     * The shape, limited to the longitudes in [min, max].
+     */
+    private static Shape lngRange(final Shape pShape, final double pMinLng, final double pMaxLng) {
+        return new Shape() {
+            public double match(final double pLng, final double pLat)
+            { return (pLng >= pMinLng && pLng <= pMaxLng) ? pShape.match(pLng, pLat) : NO_MATCH; }
+        };
+    }
+
+    /**
+     * Even-odd ray casting, with points on an edge (or a vertex) inside.
+     */
+    private static boolean inPolygon(final double [] pLngs, final double [] pLats, final double pLng, final double pLat) {
+        boolean inside = false;
+
+        for (int idx=0, prev=pLngs.length - 1; idx < pLngs.length; prev=idx++) {
+            final double x1 = pLngs[prev], y1 = pLats[prev], x2 = pLngs[idx], y2 = pLats[idx];
+
+            final double cross = (x2 - x1) * (pLat - y1) - (y2 - y1) * (pLng - x1);
+            if (cross == 0 && pLng >= Math.min(x1, x2) && pLng <= Math.max(x1, x2) && pLat >= Math.min(y1, y2) && pLat <= Math.max(y1, y2)) return true;
+
+            if ((y1 > pLat) != (y2 > pLat) && pLng < (x2 - x1) * (pLat - y1) / (y2 - y1) + x1) inside = !inside;
+        }
+
+        return inside;
+    }
+
+    /**
+     * The matches of the shape in the cells that overlap the bounds.
+     */
+    private Matches scan(   final double pMinLng,
+                            final double pMinLat,
+                            final double pMaxLng,
+                            final double pMaxLat,
+                            final Shape pShape)
+    {
+        final Matches matches = new Matches();
+        scan(pMinLng, pMinLat, pMaxLng, pMaxLat, pShape, matches);
+        return matches;
+    }
+
+    private void scan(  final double pMinLng,
+                        final double pMinLat,
+                        final double pMaxLng,
+                        final double pMaxLat,
+                        final Shape pShape,
+                        final Matches pMatches)
+    {
+        _lock.readLock().lock();
+        try {
+            final long minX = cell(pMinLng), maxX = cell(pMaxLng);
+            final long minY = cell(pMinLat), maxY = cell(pMaxLat);
+
+            // Look the cells up one by one unless there are fewer cells in the index than that.
+            if ((maxX - minX + 1) * (maxY - minY + 1) <= _cells.size()) {
+                for (long x=minX; x <= maxX; x++) {
+                    for (long y=minY; y <= maxY; y++) {
+                        final Cell cell = _cells.get(key(x, y));
+                        if (cell != null) cell.scan(pShape, pMatches);
+                    }
+                }
+            } else {
+                for (final Cell cell : _cells.values()) cell.scan(pShape, pMatches);
+            }
+        } finally { _lock.readLock().unlock(); }
+    }
+
+    private static List<Object> ids(final Matches pMatches) {
+        final ArrayList<Object> ids = new ArrayList<Object>(pMatches._size);
+        for (int idx=0; idx < pMatches._size; idx++) ids.add(pMatches._ids[idx]);
+        return ids;
+    }
+
+    /**
+     * The ids nearest first, up to the server's $near limit.
+     */
+    private static List<Object> nearest(final Matches pMatches) {
+        final ArrayList<Integer> order = new ArrayList<Integer>(pMatches._size);
+        for (int idx=0; idx < pMatches._size; idx++) order.add(idx);
+
+        Collections.sort(order, new Comparator<Integer>() {
+            public int compare(final Integer pA, final Integer pB) { return Double.compare(pMatches._distances[pA], pMatches._distances[pB]); }
+        });
+
+        final int count = Math.min(order.size(), NEAR_LIMIT);
+        final ArrayList<Object> ids = new ArrayList<Object>(count);
+        for (int idx=0; idx < count; idx++) ids.add(pMatches._ids[order.get(idx)]);
+        return ids;
+    }
+
+    private long cell(final double pDegrees) { return (long)Math.floor(pDegrees / _cellSize); }
+
+    private long key(final double pLng, final double pLat) { return key(cell(pLng), cell(pLat)); }
+
+    private static long key(final long pX, final long pY) { return (pX << 32) ^ (pY & 0xffffffffL); }
+
+    /**
+     * Applies the oplog entries for the collection.
+     */
+    private final class Follower implements Runnable {
+        private Follower(final DBCollection pCollection, final DBCollection pOplog, final String pNs, final Object pLastTs)
+        { _collection = pCollection; _oplog = pOplog; _ns = pNs; _lastTs = pLastTs; }
+
+        public void run() {
+            while (_running) {
+                try {
+                    final BasicDBObject query = new BasicDBObject("ns", _ns);
+                    if (_lastTs != null) query.put("ts", new BasicDBObject("$gt", _lastTs));
+
+                    final DBCursor cur = _oplog.find(query).sort(new BasicDBObject("$natural", 1));
+                    cur.addOption(Bytes.QUERYOPTION_TAILABLE);
+                    cur.addOption(Bytes.QUERYOPTION_AWAITDATA);
+                    cur.addOption(Bytes.QUERYOPTION_OPLOGREPLAY);
+                    _followCursor = cur;
+
+                    try {
+                        while (_running && cur.hasNext()) {
+                            final DBObject entry = cur.next();
+                            apply(entry);
+                            _lastTs = entry.get("ts");
+                        }
+                    } finally { _followCursor = null; cur.close(); }
+
+                } catch (final Throwable t) { if (_running) t.printStackTrace(); }
+
+                try { Thread.sleep(FOLLOW_DELAY); } catch (final InterruptedException ie) { return; }
+            }
+        }
+
+        private void apply(final DBObject pEntry) {
+            final String op = (String)pEntry.get("op");
+            final DBObject o = (DBObject)pEntry.get("o");
+
+            if ("i".equals(op)) { update(o.get("_id"), o);
+            } else if ("d".equals(op)) { remove(o.get("_id"));
+            } else if ("u".equals(op)) {
+                final Object id = ((DBObject)pEntry.get("o2")).get("_id");
+
+                // A replacement has the whole document. Modifiers ($set etc.) need the current one.
+                boolean modifiers = false;
+                for (final String key : o.keySet()) if (key.startsWith("$")) { modifiers = true; break; }
+
+                update(id, modifiers ? _collection.findOne(new BasicDBObject("_id", id), new BasicDBObject(_locField, 1)) : o);
+            }
+        }
+
+        private void update(final Object pId, final DBObject pDoc) {
+            if (pDoc == null || pDoc.get(_locField) == null) remove(pId);
+            else put(pId, GeoQueryCache.location(pDoc.get(_locField)));
+        }
+
+        private final DBCollection _collection;
+        private final DBCollection _oplog;
+        private final String _ns;
+        private Object _lastTs;
+    }
+
+    /**
+     * Returns the distance (or 0) if the point is in the shape, else NO_MATCH.
+     */
+    private interface Shape {
+        public double match(final double pLng, final double pLat);
+    }
+
+    private static final class Cell {
+        private void add(final Object pId, final double pLng, final double pLat) {
+            if (_size == _ids.length) {
+                final int capacity = _size * 2;
+                final Object [] ids = new Object[capacity];
+                final double [] lngs = new double[capacity];
+                final double [] lats = new double[capacity];
+                System.arraycopy(_ids, 0, ids, 0, _size);
+                System.arraycopy(_lngs, 0, lngs, 0, _size);
+                System.arraycopy(_lats, 0, lats, 0, _size);
+                _ids = ids; _lngs = lngs; _lats = lats;
+            }
+
+            _ids[_size] = pId;
+            _lngs[_size] = pLng;
+            _lats[_size] = pLat;
+            _size++;
+        }
+
+        private void remove(final Object pId) {
+            for (int idx=0; idx < _size; idx++) {
+                if (!_ids[idx].equals(pId)) continue;
+
+                // Move the last one into its place.
+                _size--;
+                _ids[idx] = _ids[_size];
+                _lngs[idx] = _lngs[_size];
+                _lats[idx] = _lats[_size];
+                _ids[_size] = null;
+                return;
+            }
+        }
+
+        private void scan(final Shape pShape, final Matches pMatches) {
+            for (int idx=0; idx < _size; idx++) {
+                final double distance = pShape.match(_lngs[idx], _lats[idx]);
+                if (distance != NO_MATCH) pMatches.add(_ids[idx], distance);
+            }
+        }
+
+        private Object [] _ids = new Object[INITIAL_CELL_SIZE];
+        private double [] _lngs = new double[INITIAL_CELL_SIZE];
+        private double [] _lats = new double[INITIAL_CELL_SIZE];
+        private int _size;
+    }
+
+    private static final class Matches {
+        private void add(final Object pId, final double pDistance) {
+            if (_size == _ids.length) {
+                final Object [] ids = new Object[_size * 2];
+                final double [] distances = new double[_size * 2];
+                System.arraycopy(_ids, 0, ids, 0, _size);
+                System.arraycopy(_distances, 0, distances, 0, _size);
+                _ids = ids; _distances = distances;
+            }
+            _ids[_size] = pId;
+            _distances[_size] = pDistance;
+            _size++;
+        }
+
+        private Object [] _ids = new Object[16];
+        private double [] _distances = new double[16];
+        private int _size;
+    }
+
+    private static final double NO_MATCH = -1;
+    private static final int NEAR_LIMIT = 100;
+    private static final int INITIAL_CELL_SIZE = 4;
+    private static final int LOAD_BATCH_SIZE = 1000;
+    private static final long FOLLOW_DELAY = 1000;
+
+    private final String _locField;
+    private final double _cellSize;
+
+    private final ReentrantReadWriteLock _lock = new ReentrantReadWriteLock();
+    private final HashMap<Long, Cell> _cells = new HashMap<Long, Cell>();
+    private final HashMap<Object, double []> _locations = new HashMap<Object, double []>();
+
+    private volatile boolean _running;
+    private Thread _follower;
+
+    // The follower's live cursor, so stop can close it.
+    private volatile DBCursor _followCursor;
+}
@@ -0,0 +1,517 @@
+/**
+ * Copyright 2011, Deft Labs.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.deftlabs.examples.mongo;
+
+// Mongo
+import com.mongodb.BasicDBObject;
+import com.mongodb.DB;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.Mongo;
+import com.mongodb.MongoException;
+import com.mongodb.MongoOptions;
+import com.mongodb.ServerAddress;
+import com.mongodb.WriteConcern;
+import com.mongodb.util.JSON;
+
+// Java
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Loads venues in bulk from CSV or GeoJSON.
+ *
+ * The file is streamed (one row or feature at a time) into batches, and the
+ * batches are written by a fixed number of threads. At most two batches per
+ * thread are read ahead, so memory stays bounded however big the file is.
+ *
+ * Inserts send a batch as one message (one round trip per batch). Upserts
+ * (keyed on name, like addVenue) are not batched: each one is sent and
+ * acknowledged (SAFE) on its own, one round trip per venue, since one
+ * getlasterror after a batch only reports the last write. A venue that fails
+ * is counted as an error on its own, as is a venue without a name (it would
+ * otherwise upsert on a null name and overwrite every other nameless venue).
+ *
+ * Before upserting, a unique index on name is ensured (and left in place), so
+ * two batches upserting the same new name at once can not both insert it:
+ * the one that loses gets a duplicate key error and is sent again (it now
+ * updates). If the collection already has two venues with the same name the
+ * index can not be built and the load stops before writing anything.
+ *
+ * The 2d index is best built once the venues are in rather than updated on
+ * every write: AFTER builds it when the load is done (and waits for it),
+ * BACKGROUND starts a background build and returns.
+ *
+ * CSV: a header row with name, lng (or lon, longitude) and lat (or latitude)
+ * columns. Any other columns are kept as strings. Fields may be quoted.
+ *
+ * GeoJSON: a FeatureCollection of Point features. The properties are kept
+ * (name among them).
+ *
+ * Run with: ant load -Dload.file=venues.csv (see main for the other load.* properties)
+ */
+public final class VenueLoader {
+
+    public enum Format { CSV, GEOJSON }
+
+    public enum Index { NONE, AFTER, BACKGROUND }
+
+    /**
+     * @param pCollection The venue collection.
+     * @param pLocField The [ long, lat ] field.
+     * @param pBatchSize The venues per batch.
+     * @param pConnections The number of batches written at once.
+     * @param pUpsert If true, upsert on name. Otherwise insert.
+     * @param pIndex When to build the 2d index.
+     */
+    public VenueLoader( final DBCollection pCollection,
+                        final String pLocField,
+                        final int pBatchSize,
+                        final int pConnections,
+                        final boolean pUpsert,
+                        final Index pIndex)
+    {
+        _collection = pCollection;
+        _locField = pLocField;
+        _batchSize = pBatchSize;
+        _connections = pConnections;
+        _upsert = pUpsert;
+        _index = pIndex;
+    }
+
+    public Result load(final File pFile) throws IOException, InterruptedException {
+        final String name = pFile.getName().toLowerCase();
+        final Format format = (name.endsWith(".json") || name.endsWith(".geojson")) ? Format.GEOJSON : Format.CSV;
+
+        final Reader reader = new InputStreamReader(new FileInputStream(pFile), "UTF-8");
+        try { return load(reader, format);
+        } finally { reader.close(); }
+    }
+
+    public Result load(final Reader pReader, final Format pFormat) throws IOException, InterruptedException {
+        final Source source = (pFormat == Format.CSV) ? new CsvSource(pReader) : new GeoJsonSource(pReader);
+
+        if (_upsert) ensureNameIndex();
+
+        final ExecutorService writers = Executors.newFixedThreadPool(_connections);
+        final Semaphore readAhead = new Semaphore(_connections * 2);
+        final AtomicLong written = new AtomicLong(0);
+        final AtomicLong errors = new AtomicLong(0);
+
+        final long start = System.currentTimeMillis();
+        long rows = 0;
+
+        try {
+            ArrayList<DBObject> batch = new ArrayList<DBObject>(_batchSize);
+
+            DBObject venue;
+            while ((venue = source.next()) != null) {
+                batch.add(venue);
+                rows++;
+
+                if (batch.size() >= _batchSize) {
+                    submit(writers, readAhead, batch, written, errors);
+                    batch = new ArrayList<DBObject>(_batchSize);
+                }
+
+                if (rows % PROGRESS_ROWS == 0) System.out.println("----- read: " + rows + " written: " + written.get() + " rows/sec: " + String.format("%.1f", perSecond(written.get(), System.currentTimeMillis() - start)));
+            }
+
+            if (!batch.isEmpty()) submit(writers, readAhead, batch, written, errors);
+
+        } finally {
+            writers.shutdown();
+            writers.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        }
+
+        final long loadMillis = System.currentTimeMillis() - start;
+        final long indexStart = System.currentTimeMillis();
+
+        buildIndex();
+
+        return new Result(rows, written.get(), errors.get(), loadMillis, System.currentTimeMillis() - indexStart);
+    }
+
+    private void submit(final ExecutorService pWriters,
+                        final Semaphore pReadAhead,
+                        final List<DBObject> pBatch,
+                        final AtomicLong pWritten,
+                        final AtomicLong pErrors)
+        throws InterruptedException
+    {
+        pReadAhead.acquire();
+
+        pWriters.execute(new Runnable() {
+            public void run() {
+                try {
+                    final int failed = write(pBatch);
+                    pWritten.addAndGet(pBatch.size() - failed);
+                    pErrors.addAndGet(failed);
+                } catch (final Throwable t) {
+                    pErrors.addAndGet(pBatch.size());
+                    t.printStackTrace();
+                } finally { pReadAhead.release(); }
+            }
+        });
+    }
+
+    /**
+     * Write the batch. Returns the number of upserts that failed or had no
+     * name (a failed insert throws for the whole batch).
+     */
+    private int write(final List<DBObject> pBatch) {
+        if (!_upsert) { _collection.insert(pBatch, WriteConcern.SAFE); return 0; }
+
+        int failed = 0;
+        for (final DBObject venue : pBatch) {
+            final Object name = venue.get("name");
+            if (name == null || name.toString().length() == 0) {
+                failed++;
+                System.out.println("----- unable to upsert a venue without a name: " + venue);
+                continue;
+            }
+
+            try { upsert(venue);
+            } catch (final MongoException me) {
+                failed++;
+                System.out.println("----- unable to upsert: " + venue.get("name") + " - " + me.getMessage());
+            }
+        }
+        return failed;
+    }
+
+    private void upsert(final DBObject pVenue) {
+        final BasicDBObject query = new BasicDBObject("name", pVenue.get("name"));
+        try { _collection.update(query, pVenue, true, false, WriteConcern.SAFE);
+        } catch (final MongoException me) {
+            if (!isDuplicateKey(me)) throw me;
+
+            // Another batch inserted the name first - it is there to update now.
+            _collection.update(query, pVenue, true, false, WriteConcern.SAFE);
+        }
+    }
+
+    private static boolean isDuplicateKey(final MongoException pE)
+    { return (pE instanceof MongoException.DuplicateKey) || pE.getCode() == 11000 || pE.getCode() == 11001; }
+
+    /**
+     * The unique index on name that upserts rely on (and wait for).
+     */
+    private void ensureNameIndex() {
+        final DB db = _collection.getDB();
+        db.requestStart();
+        try {
+            _collection.ensureIndex(new BasicDBObject("name", 1), "name_1", true);
+
+            try { db.getLastError().throwOnError();
+            } catch (final MongoException me) {
+                throw new IllegalStateException("unable to build the unique index on name that upserts need (are there duplicate names in " + _collection.getFullName() + "?)", me);
+            }
+        } finally { db.requestDone(); }
+    }
+
+    private void buildIndex() {
+        if (_index == Index.NONE) return;
+
+        final BasicDBObject keys = new BasicDBObject(_locField, "2d");
+
+        if (_index == Index.BACKGROUND) {
+            _collection.ensureIndex(keys, new BasicDBObject("background", true));
+            return;
+        }
+
+        // Wait for the build.
+        final DB db = _collection.getDB();
+        db.requestStart();
+        try {
+            _collection.ensureIndex(keys);
+            db.getLastError().throwOnError();
+        } finally { db.requestDone(); }
+    }
+
+    private DBObject venue(final String pName, final double pLng, final double pLat) {
+        final BasicDBObject venue = new BasicDBObject("name", pName);
+        venue.put(_locField, new double[] { pLng, pLat });
+        return venue;
+    }
+
+    private interface Source {
+        /**
+         * The next venue, or null at the end.
+         */
+        public DBObject next() throws IOException;
+    }
+
+    private final class CsvSource implements Source {
+        private CsvSource(final Reader pReader) throws IOException {
+            _in = new BufferedReader(pReader);
+
+            final String header = _in.readLine();
+            if (header == null) throw new IOException("no csv header");
+            _columns = split(header);
+
+            for (int idx=0; idx < _columns.length; idx++) {
+                final String column = _columns[idx].trim().toLowerCase();
+                if (column.equals("name")) _name = idx;
+                else if (column.equals("lng") || column.equals("lon") || column.equals("longitude")) _lng = idx;
+                else if (column.equals("lat") || column.equals("latitude")) _lat = idx;
+            }
+
+            if (_name < 0 || _lng < 0 || _lat < 0) throw new IOException("the csv header needs name, lng and lat columns: " + header);
+        }
+
+        public DBObject next() throws IOException {
+            String line;
+            do { line = _in.readLine(); } while (line != null && line.trim().length() == 0);
+            if (line == null) return null;
+
+            _line++;
+            final String [] fields = split(line);
+            if (fields.length != _columns.length) throw new IOException("row " + _line + " has " + fields.length + " fields, not " + _columns.length);
+
+            final DBObject venue = venue(fields[_name], Double.parseDouble(fields[_lng].trim()), Double.parseDouble(fields[_lat].trim()));
+            for (int idx=0; idx < fields.length; idx++) {
+                if (idx != _name && idx != _lng && idx != _lat) venue.put(_columns[idx].trim(), fields[idx]);
+            }
+            return venue;
+        }
+
+        /**
+         * Split on commas outside of double quotes ("" is a quote in a quoted field).
+         */
+        private String [] split(final String pLine) {
+            final ArrayList<String> fields = new ArrayList<String>();
+            final StringBuilder field = new StringBuilder();
+            boolean quoted = false;
+
+            for (int idx=0; idx < pLine.length(); idx++) {
+                final char c = pLine.charAt(idx);
+
+                if (quoted) {
+                    if (c != '"') field.append(c);
+                    else if (idx + 1 < pLine.length() && pLine.charAt(idx + 1) == '"') { field.append('"'); idx++; }
+                    else quoted = false;
+                } else if (c == '"') { quoted = true;
+                } else if (c == ',') { fields.add(field.toString()); field.setLength(0);
+                } else field.append(c);
+            }
+
+            fields.add(field.toString());
+            return fields.toArray(new String[fields.size()]);
+        }
+
+        private final BufferedReader _in;
+        private final String [] _columns;
+        private int _name = -1;
+        private int _lng = -1;
+        private int _lat = -1;
+        private long _line = 1;
+    }
+
+    /**
+     * Reads the features array one feature at a time, so only one feature is
+     * parsed (with JSON.parse) and held at once.
+     */
+    private final class GeoJsonSource implements Source {
+        private GeoJsonSource(final Reader pReader) { _in = new BufferedReader(pReader); }
+
+        public DBObject next() throws IOException {
+            while (true) {
+                if (!_inFeatures) {
+                    if (!findFeatures()) return null;
+                    _inFeatures = true;
+                }
+
+                int c;
+                do { c = _in.read(); } while (c != -1 && (Character.isWhitespace(c) || c == ','));
+                if (c == -1 || c == ']') return null;
+                if (c != '{') throw new IOException("expected a feature, not: " + (char)c);
+
+                final DBObject venue = venue((DBObject)JSON.parse(readObject()));
+                if (venue != null) return venue;
+            }
+        }
+
+        /**
+         * The venue for a Point feature, or null for any other geometry.
+         */
+        private DBObject venue(final DBObject pFeature) {
+            final DBObject geometry = (DBObject)pFeature.get("geometry");
+            if (geometry == null || !"Point".equals(geometry.get("type"))) return null;
+
+            final List<?> coordinates = (List<?>)geometry.get("coordinates");
+            final DBObject properties = (DBObject)pFeature.get("properties");
+
+            final DBObject venue
+            = VenueLoader.this.venue(   (properties == null) ? null : (String)properties.get("name"),
+                                        ((Number)coordinates.get(0)).doubleValue(),
+                                        ((Number)coordinates.get(1)).doubleValue());
+
+            if (properties != null) {
+                for (final String key : properties.keySet()) if (!key.equals(_locField)) venue.put(key, properties.get(key));
+            }
+            return venue;
+        }
+
+        /**
+         * Read up to the [ of the top level features member.
+         */
+        private boolean findFeatures() throws IOException {
+            int depth = 0;
+            String lastString = null;
+
+            int c;
+            while ((c = _in.read()) != -1) {
+                if (c == '"') {
+                    final String string = readString();
+                    if (depth == 1) lastString = string;
+                } else if (c == '{' || c == '[') {
+                    if (c == '[' && depth == 1 && "features".equals(lastString)) return true;
+                    depth++;
+                } else if (c == '}' || c == ']') depth--;
+            }
+            return false;
+        }
+
+        /**
+         * The rest of a string (after the opening quote), escapes left as is.
+         */
+        private String readString() throws IOException {
+            final StringBuilder string = new StringBuilder();
+            boolean escape = false;
+
+            while (true) {
+                final int c = _in.read();
+                if (c == -1) throw new IOException("unterminated string");
+                if (!escape && c == '"') return string.toString();
+                escape = !escape && c == '\\';
+                string.append((char)c);
+            }
+        }
+
+        /**
+         * The rest of an object (after the opening brace), as json text.
+         */
+        private String readObject() throws IOException {
+            final StringBuilder object = new StringBuilder("{");
+            int depth = 1;
+
+            while (depth > 0) {
+                final int c = _in.read();
+                if (c == -1) throw new IOException("unterminated feature");
+
+                object.append((char)c);
+
+                if (c == '"') object.append(readString()).append('"');
+                else if (c == '{' || c == '[') depth++;
+                else if (c == '}' || c == ']') depth--;
+            }
+            return object.toString();
+        }
+
+        private final BufferedReader _in;
+        private boolean _inFeatures;
+    }
+
+    /**
+     * The outcome of a load.
+     */
+    public static final class Result {
+        private Result(final long pRows, final long pWritten, final long pErrors, final long pLoadMillis, final long pIndexMillis)
+        { _rows = pRows; _written = pWritten; _errors = pErrors; _loadMillis = pLoadMillis; _indexMillis = pIndexMillis; }
+
+        public long getRows() { return _rows; }
+        public long getWritten() { return _written; }
+        public long getErrors() { return _errors; }
+        public long getLoadMillis() { return _loadMillis; }
+        public long getIndexMillis() { return _indexMillis; }
+        public double getRowsPerSecond() { return perSecond(_written, _loadMillis); }
+
+        @Override
+        public String toString() {
+            return "----- rows: " + _rows + " written: " + _written + " errors: " + _errors
+            + " load (ms): " + _loadMillis + " rows/sec: " + String.format("%.1f", getRowsPerSecond())
+            + " index (ms): " + _indexMillis;
+        }
+
+        private final long _rows;
+        private final long _written;
+        private final long _errors;
+        private final long _loadMillis;
+        private final long _indexMillis;
+    }
+
+    /**
+     * Load a file. Set with system properties:
+     *
+     * load.file - the .csv or .json/.geojson file (required)
+     * load.host - 127.0.0.1
+     * load.port - 27017
+     * load.db - geospacial
+     * load.collection - example
+     * load.batchSize - 1000
+     * load.connections - 4
+     * load.upsert - false
+     * load.index - AFTER (NONE, AFTER or BACKGROUND)
+     */
+    public static void main(final String [] pArgs) throws Exception {
+        final String file = System.getProperty("load.file");
+        if (file == null) throw new IllegalArgumentException("set load.file");
+
+        final int connections = Integer.getInteger("load.connections", 4);
+
+        final MongoOptions options = new MongoOptions();
+        options.connectionsPerHost = Math.max(options.connectionsPerHost, connections);
+
+        final Mongo mongo
+        = new Mongo(new ServerAddress(System.getProperty("load.host", "127.0.0.1"), Integer.getInteger("load.port", 27017)), options);
+
+        try {
+            final VenueLoader loader
+            = new VenueLoader(  mongo.getDB(System.getProperty("load.db", "geospacial")).getCollection(System.getProperty("load.collection", "example")),
+                                "loc",
+                                Integer.getInteger("load.batchSize", 1000),
+                                connections,
+                                Boolean.getBoolean("load.upsert"),
+                                Index.valueOf(System.getProperty("load.index", "AFTER")));
+
+            System.out.println(loader.load(new File(file)));
+        } finally { mongo.close(); }
+    }
+
+    private static double perSecond(final long pCount, final long pMillis) { return (pMillis == 0) ? 0 : pCount * 1000.0 / pMillis; }
+
+    private static final long PROGRESS_ROWS = 100000;
+
+    private final DBCollection _collection;
+    private final String _locField;
+    private final int _batchSize;
+    private final int _connections;
+    private final boolean _upsert;
+    private final Index _index;
+}
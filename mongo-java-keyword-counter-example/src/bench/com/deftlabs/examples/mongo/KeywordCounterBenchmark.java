@@ -0,0 +1,192 @@
+/**
+ * Copyright 2011, Deft Labs.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.deftlabs.examples.mongo;
+
+// Mongo
+import com.mongodb.BasicDBObject;
+import org.bson.types.ObjectId;
+
+// Java
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.zip.CRC32;
+
+/**
+ * Micro benchmarks for the keyword counter hot path. These do not touch the
+ * database: tokenizing, hashing, building the field path and building the
+ * flush's bucket update documents are each timed on their own over the words
+ * in the data file.
+ *
+ * Each benchmark is warmed up and then measured for a few rounds. The time
+ * and the bytes allocated (from the HotSpot thread allocation counter) are
+ * reported per operation.
+ *
+ * Run with: ant bench
+ */
+public final class KeywordCounterBenchmark {
+
+    public static void main(final String [] pArgs) throws Exception {
+        final File file = new File((pArgs.length > 0) ? pArgs[0] : "data/war_and_peace.txt");
+
+        final ArrayList<String> wordList = new ArrayList<String>();
+        TOKENIZER.tokenize(file, new KeywordTokenizer.Listener() {
+            public void word(final String pWord) { wordList.add(pWord); }
+        });
+
+        final String [] words = wordList.toArray(new String[wordList.size()]);
+
+        System.out.println("words: " + words.length + " - rounds: " + ROUNDS + " - warmup rounds: " + WARMUP_ROUNDS);
+        System.out.println(String.format("%-28s %14s %14s", "benchmark", "ns/op", "bytes/op"));
+
+        run(new Benchmark("tokenize", words.length) {
+            void round() throws Exception {
+                TOKENIZER.tokenize(file, new KeywordTokenizer.Listener() {
+                    public void word(final String pWord) { _sink += pWord.length(); }
+                });
+            }
+        });
+
+        run(new Benchmark("hash (crc32 + getBytes)", words.length) {
+            void round() throws Exception {
+                final CRC32 crc = new CRC32();
+                for (final String word : words) {
+                    final byte [] raw = word.getBytes("UTF-8");
+                    crc.reset(); crc.update(raw);
+                    final long idHash = crc.getValue();
+                    crc.reset(); crc.update(raw, 0, (raw.length > 6) ? 6 : raw.length);
+                    final long firstHash = crc.getValue();
+                    crc.reset(); crc.update(raw, 0, (raw.length > 3) ? 3 : raw.length);
+                    _sink += (idHash % 50) + (firstHash % 100) + (crc.getValue() % 100);
+                }
+            }
+        });
+
+        run(new Benchmark("hash (KeywordHasher)", words.length) {
+            void round() {
+                for (final String word : words) {
+                    HASHER.hash(word, _buckets);
+                    _sink += _buckets.getDocBucket() + _buckets.getFirstBucket() + _buckets.getSecondBucket();
+                }
+            }
+            private final KeywordHasher.Buckets _buckets = new KeywordHasher.Buckets();
+        });
+
+        run(new Benchmark("field path", words.length) {
+            void round() {
+                for (final String word : words) {
+                    HASHER.hash(word, _buckets);
+                    final String docId = KeywordCounter.docId(GROUP_ID, DATE, _buckets.getDocBucket());
+                    final String field = "keywords." + _buckets.getFirstBucket() + "." + _buckets.getSecondBucket() + "." + word;
+                    _sink += docId.length() + field.length();
+                }
+            }
+            private final KeywordHasher.Buckets _buckets = new KeywordHasher.Buckets();
+        });
+
+        // The same work as KeywordCounter.flush: the fields are grouped by bucket
+        // document and each batch of MAX_PENDING_FIELDS is turned into one
+        // $inc + $set upsert per document.
+        run(new Benchmark("update document", words.length) {
+            void round() {
+                int pendingFields = 0;
+                for (final String word : words) {
+                    HASHER.hash(word, _buckets);
+                    final int docBucket = _buckets.getDocBucket();
+                    final String field = "keywords." + _buckets.getFirstBucket() + "." + _buckets.getSecondBucket() + "." + word;
+
+                    final HashMap<String, long []> fields = _docs.get(docBucket);
+                    final long [] count = fields.get(field);
+                    if (count == null) {
+                        fields.put(field, new long[] { 1 });
+                        if (++pendingFields >= MAX_PENDING_FIELDS) { build(); pendingFields = 0; }
+                    } else count[0]++;
+                }
+                build();
+            }
+
+            private void build() {
+                for (int docBucket=0; docBucket < _docs.size(); docBucket++) {
+                    if (_docs.get(docBucket).isEmpty()) continue;
+                    final BasicDBObject vals = KeywordCounter.update(GROUP_ID, DATE, docBucket, _docs.size(), _docs.get(docBucket));
+                    _sink += ((BasicDBObject)vals.get("$inc")).size();
+                    _docs.set(docBucket, new HashMap<String, long []>());
+                }
+            }
+
+            private final KeywordHasher.Buckets _buckets = new KeywordHasher.Buckets();
+            private final ArrayList<HashMap<String, long []>> _docs = new ArrayList<HashMap<String, long []>>();
+            { for (int idx=0; idx < HASHER.getDocCount(); idx++) _docs.add(new HashMap<String, long []>()); }
+        });
+
+        // Keep the results alive so the JIT can not remove the work.
+        if (_sink == 42) System.out.println("sink: " + _sink);
+    }
+
+    private static void run(final Benchmark pBenchmark) throws Exception {
+        for (int idx=0; idx < WARMUP_ROUNDS; idx++) pBenchmark.round();
+
+        final long startBytes = allocatedBytes();
+        final long start = System.nanoTime();
+
+        for (int idx=0; idx < ROUNDS; idx++) pBenchmark.round();
+
+        final long elapsed = System.nanoTime() - start;
+        final long endBytes = allocatedBytes();
+        final double ops = (double)pBenchmark._opsPerRound * ROUNDS;
+
+        final String bytesPerOp = (startBytes == -1 || endBytes == -1) ? "n/a" : String.format("%.1f", (endBytes - startBytes) / ops);
+
+        System.out.println(String.format("%-28s %14.1f %14s", pBenchmark._name, elapsed / ops, bytesPerOp));
+    }
+
+    /**
+     * The bytes allocated by this thread so far (-1 if the jvm does not support
+     * it). This turns on allocation counting if it is off.
+     */
+    private static long allocatedBytes() {
+        final java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean)) return -1;
+
+        final com.sun.management.ThreadMXBean sunBean = (com.sun.management.ThreadMXBean)bean;
+        if (!sunBean.isThreadAllocatedMemorySupported()) return -1;
+        if (!sunBean.isThreadAllocatedMemoryEnabled()) sunBean.setThreadAllocatedMemoryEnabled(true);
+
+        return sunBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private static abstract class Benchmark {
+        Benchmark(final String pName, final int pOpsPerRound) { _name = pName; _opsPerRound = pOpsPerRound; }
+
+        abstract void round() throws Exception;
+
+        private final String _name;
+        private final int _opsPerRound;
+    }
+
+    private static final int WARMUP_ROUNDS = Integer.getInteger("bench.warmup", 5);
+    private static final int ROUNDS = Integer.getInteger("bench.rounds", 10);
+    private static final int MAX_PENDING_FIELDS = 10000;
+
+    private static final KeywordTokenizer TOKENIZER = new KeywordTokenizer("().\"?");
+    private static final KeywordHasher HASHER = new KeywordHasher(50, 100);
+    private static final ObjectId GROUP_ID = ObjectId.get();
+    private static final String DATE = "20111202";
+
+    private static long _sink;
+}
@@ -0,0 +1,206 @@
+/**
+ * Copyright 2011, Deft Labs.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.deftlabs.examples.mongo;
+
+// Mongo
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import org.bson.types.ObjectId;
+
+// Java
+import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.TreeMap;
+
+/**
+ * Picks the number of bucket documents (the DOC_COUNT) per group and date.
+ *
+ * Every group starts with the base doc count. The counter reports each
+ * upsert and the number of fields in it. Stats are kept per group and date
+ * (for the most recent dates of each group, so one flush can cover several
+ * dates in any order). When one bucket document gets too many fields, or is
+ * updated faster than the max rate, the doc count is doubled for every date
+ * after that one (up to the max). Dates that already have data never change,
+ * so a keyword always maps to the same document for a given date.
+ *
+ * The field count is an upper bound (a field sent in two flushes is counted
+ * twice), which errs on the side of splitting early. The update rate of a
+ * document is measured over a window of RATE_WINDOW millis.
+ *
+ * The layout changes are stored in the layout collection (one document per
+ * group) so they survive restarts. This is thread safe.
+ */
+public final class KeywordBucketSizer {
+
+    public KeywordBucketSizer(  final DBCollection pLayouts,
+                                final int pBaseDocCount,
+                                final int pMaxDocCount,
+                                final long pMaxFieldsPerDoc,
+                                final double pMaxUpdatesPerSecond)
+    {
+        _layouts = pLayouts;
+        _baseDocCount = pBaseDocCount;
+        _maxDocCount = pMaxDocCount;
+        _maxFieldsPerDoc = pMaxFieldsPerDoc;
+        _maxUpdatesPerSecond = pMaxUpdatesPerSecond;
+    }
+
+    /**
+     * The number of bucket documents used for the group on this date.
+     */
+    public synchronized int docCount(final ObjectId pGroupId, final String pDate)
+    { return layout(pGroupId).docCount(pDate); }
+
+    /**
+     * Record an upsert of a bucket document.
+     */
+    public synchronized void record(final ObjectId pGroupId,
+                                    final String pDate,
+                                    final int pDocBucket,
+                                    final int pFields)
+    {
+        final GroupLayout layout = layout(pGroupId);
+        final DateStats stats = layout.stats(pDate);
+        if (stats == null) return; // Older than every date tracked.
+
+        stats.fields[pDocBucket] += pFields;
+
+        if (stats.fields[pDocBucket] <= _maxFieldsPerDoc && !stats.hot(pDocBucket, System.currentTimeMillis(), _maxUpdatesPerSecond)) return;
+
+        // Only split once per date and never past the max.
+        final int docCount = stats.fields.length;
+        if (docCount * 2 > _maxDocCount) return;
+        if (layout.lastAfterDate().compareTo(pDate) >= 0) return;
+
+        // A later date already has data, and its layout must not change.
+        if (layout.dates.lastKey().compareTo(pDate) > 0) return;
+
+        layout.split(pDate, docCount * 2);
+
+        final BasicDBObject split = new BasicDBObject("afterDate", pDate);
+        split.put("docCount", docCount * 2);
+
+        _layouts.update(new BasicDBObject("_id", pGroupId), new BasicDBObject("$push", new BasicDBObject("splits", split)), true, false);
+    }
+
+    private GroupLayout layout(final ObjectId pGroupId) {
+        GroupLayout layout = _groups.get(pGroupId);
+        if (layout != null) return layout;
+
+        layout = new GroupLayout(_baseDocCount);
+
+        final DBObject doc = _layouts.findOne(new BasicDBObject("_id", pGroupId));
+        if (doc != null && doc.get("splits") != null) {
+            for (final Object val : (BasicDBList)doc.get("splits")) {
+                final DBObject split = (DBObject)val;
+                layout.split((String)split.get("afterDate"), ((Number)split.get("docCount")).intValue());
+            }
+        }
+
+        _groups.put(pGroupId, layout);
+        return layout;
+    }
+
+    /**
+     * The doc count changes for a group and the stats for its recent dates.
+     */
+    private static final class GroupLayout {
+        private GroupLayout(final int pBaseDocCount) { baseDocCount = pBaseDocCount; }
+
+        private int docCount(final String pDate) {
+            // The splits are in date order, so use the last one before this date.
+            for (int idx = afterDates.size() - 1; idx >= 0; idx--)
+            { if (pDate.compareTo(afterDates.get(idx)) > 0) return docCounts.get(idx); }
+            return baseDocCount;
+        }
+
+        private void split(final String pAfterDate, final int pDocCount)
+        { afterDates.add(pAfterDate); docCounts.add(pDocCount); }
+
+        private String lastAfterDate()
+        { return afterDates.isEmpty() ? "" : afterDates.get(afterDates.size() - 1); }
+
+        /**
+         * The stats for the date, or null if it is older than every date kept.
+         */
+        private DateStats stats(final String pDate) {
+            DateStats stats = dates.get(pDate);
+            if (stats != null) return stats;
+
+            if (dates.size() >= MAX_DATES_PER_GROUP) {
+                final String oldest = dates.firstKey();
+                if (pDate.compareTo(oldest) < 0) return null;
+                dates.remove(oldest);
+            }
+
+            stats = new DateStats(docCount(pDate));
+            dates.put(pDate, stats);
+            return stats;
+        }
+
+        private final int baseDocCount;
+        private final ArrayList<String> afterDates = new ArrayList<String>();
+        private final ArrayList<Integer> docCounts = new ArrayList<Integer>();
+
+        private final TreeMap<String, DateStats> dates = new TreeMap<String, DateStats>();
+    }
+
+    /**
+     * The fields sent to and the update rate of each bucket document of one date.
+     */
+    private static final class DateStats {
+        private DateStats(final int pDocCount) {
+            fields = new long[pDocCount];
+            windowStarts = new long[pDocCount];
+            windowUpdates = new int[pDocCount];
+        }
+
+        /**
+         * Count an update and return true if the document's rate over the last
+         * full window was over the max.
+         */
+        private boolean hot(final int pDocBucket, final long pNow, final double pMaxUpdatesPerSecond) {
+            if (windowStarts[pDocBucket] == 0) windowStarts[pDocBucket] = pNow;
+            windowUpdates[pDocBucket]++;
+
+            final long elapsed = pNow - windowStarts[pDocBucket];
+            if (elapsed < RATE_WINDOW) return false;
+
+            final double rate = windowUpdates[pDocBucket] * 1000.0 / elapsed;
+            windowStarts[pDocBucket] = pNow;
+            windowUpdates[pDocBucket] = 0;
+            return rate > pMaxUpdatesPerSecond;
+        }
+
+        private final long [] fields;
+        private final long [] windowStarts;
+        private final int [] windowUpdates;
+    }
+
+    private static final long RATE_WINDOW = 10000;
+    private static final int MAX_DATES_PER_GROUP = 8;
+
+    private final DBCollection _layouts;
+    private final int _baseDocCount;
+    private final int _maxDocCount;
+    private final long _maxFieldsPerDoc;
+    private final double _maxUpdatesPerSecond;
+
+    private final HashMap<ObjectId, GroupLayout> _groups = new HashMap<ObjectId, GroupLayout>();
+}
@@ -0,0 +1,201 @@
+/**
+ * Copyright 2011, Deft Labs.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.deftlabs.examples.mongo;
+
+// Mongo
+import org.bson.types.ObjectId;
+
+/**
+ * A bounded, in-process count table keyed by (group, date, keyword) that sits
+ * in front of a KeywordCounter. Counts are kept as primitive longs in an open
+ * addressing table. When the table is full, an entry is evicted with the clock
+ * (second chance) algorithm, which approximates LRU without moving anything
+ * on a hit. Evicted counts, and all counts every flush interval, are written
+ * behind to the counter as deltas.
+ *
+ * Hot keywords stay in the table and reach the database once per flush
+ * interval. Like the counter, anything not yet written is lost if the process
+ * dies, so call close() when you are done.
+ */
+public final class KeywordCountCache {
+
+    public KeywordCountCache(   final KeywordCounter pCounter,
+                                final int pMaxEntries,
+                                final long pFlushInterval)
+    {
+        _counter = pCounter;
+        _maxEntries = pMaxEntries;
+        _flushInterval = pFlushInterval;
+
+        // Keep the load factor at or below one half.
+        int capacity = 2;
+        while (capacity < pMaxEntries * 2) capacity <<= 1;
+        _mask = capacity - 1;
+
+        _groups = new ObjectId[capacity];
+        _dates = new String[capacity];
+        _words = new String[capacity];
+        _counts = new long[capacity];
+        _referenced = new boolean[capacity];
+
+        _lastFlush = System.currentTimeMillis();
+    }
+
+    /**
+     * Count one occurrence of the word.
+     */
+    public synchronized void count(final ObjectId pGroupId, final String pDate, final String pWord) {
+        int slot = hash(pGroupId, pDate, pWord) & _mask;
+
+        while (_words[slot] != null) {
+            if (_words[slot].equals(pWord) && _dates[slot].equals(pDate) && _groups[slot].equals(pGroupId)) {
+                _counts[slot]++;
+                _referenced[slot] = true;
+                checkFlush();
+                return;
+            }
+            slot = (slot + 1) & _mask;
+        }
+
+        if (_size == _maxEntries) {
+            evict();
+            // The eviction may have shifted entries, so find the free slot again.
+            slot = hash(pGroupId, pDate, pWord) & _mask;
+            while (_words[slot] != null) slot = (slot + 1) & _mask;
+        }
+
+        _groups[slot] = pGroupId;
+        _dates[slot] = pDate;
+        _words[slot] = pWord;
+        _counts[slot] = 1;
+        _referenced[slot] = false;
+        _size++;
+
+        checkFlush();
+    }
+
+    /**
+     * Write every count to the counter and flush the counter. The entries stay
+     * in the table (with a zero count) so hot keywords do not have to be
+     * re-inserted.
+     */
+    public synchronized void flush() {
+        for (int slot=0; slot <= _mask; slot++) {
+            if (_words[slot] == null || _counts[slot] == 0) continue;
+            _counter.count(_groups[slot], _dates[slot], _words[slot], _counts[slot]);
+            _counts[slot] = 0;
+        }
+
+        _counter.flush();
+        _lastFlush = System.currentTimeMillis();
+    }
+
+    /**
+     * Flush and close the counter.
+     */
+    public synchronized void close() {
+        flush();
+        _counter.close();
+    }
+
+    /**
+     * The number of keywords in the table.
+     */
+    public synchronized int size() { return _size; }
+
+    /**
+     * The number of entries evicted (and written behind) because the table was full.
+     */
+    public synchronized long getEvictions() { return _evictions; }
+
+    private void checkFlush()
+    { if ((System.currentTimeMillis() - _lastFlush) >= _flushInterval) flush(); }
+
+    /**
+     * Move the clock hand until it finds an entry that has not been used since
+     * the last pass and write it behind.
+     */
+    private void evict() {
+        while (true) {
+            _hand = (_hand + 1) & _mask;
+            if (_words[_hand] == null) continue;
+            if (_referenced[_hand]) { _referenced[_hand] = false; continue; }
+
+            if (_counts[_hand] != 0) _counter.count(_groups[_hand], _dates[_hand], _words[_hand], _counts[_hand]);
+            remove(_hand);
+            _evictions++;
+            return;
+        }
+    }
+
+    /**
+     * Remove the entry and shift back any entries in the same probe run so
+     * lookups never hit a hole.
+     */
+    private void remove(final int pSlot) {
+        int hole = pSlot;
+        int next = pSlot;
+        while (true) {
+            next = (next + 1) & _mask;
+            if (_words[next] == null) break;
+
+            final int home = hash(_groups[next], _dates[next], _words[next]) & _mask;
+
+            // Only move the entry if its home is not between the hole and its current slot.
+            if (hole <= next ? (hole < home && home <= next) : (hole < home || home <= next)) continue;
+
+            _groups[hole] = _groups[next];
+            _dates[hole] = _dates[next];
+            _words[hole] = _words[next];
+            _counts[hole] = _counts[next];
+            _referenced[hole] = _referenced[next];
+            hole = next;
+        }
+
+        _groups[hole] = null;
+        _dates[hole] = null;
+        _words[hole] = null;
+        _counts[hole] = 0;
+        _referenced[hole] = false;
+        _size--;
+    }
+
+    private static int hash(final ObjectId pGroupId, final String pDate, final String pWord) {
+        int h = pWord.hashCode();
+        h = (h * 31) + pDate.hashCode();
+        h = (h * 31) + pGroupId.hashCode();
+        // Spread the high bits down since the table size is a power of two.
+        h ^= (h >>> 20) ^ (h >>> 12);
+        return h ^ (h >>> 7) ^ (h >>> 4);
+    }
+
+    private final KeywordCounter _counter;
+    private final int _maxEntries;
+    private final long _flushInterval;
+    private final int _mask;
+
+    private final ObjectId [] _groups;
+    private final String [] _dates;
+    private final String [] _words;
+    private final long [] _counts;
+    private final boolean [] _referenced;
+
+    private int _size;
+    private int _hand;
+    private long _evictions;
+    private long _lastFlush;
+}
@@ -0,0 +1,255 @@
+/**
+ * Copyright 2011, Deft Labs.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.deftlabs.examples.mongo;
+
+// Mongo
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.WriteConcern;
+import org.bson.types.ObjectId;
+
+// Java
+import java.util.Map;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Timer;
+import java.util.TimerTask;
+
+/**
+ * A batching keyword counter. Increments are collected in memory and repeated
+ * keywords are merged into a single $inc per bucket document. When the number
+ * of pending fields reaches the max or the oldest pending increment is older
+ * than the max delay, one upsert is sent per bucket document. A background
+ * timer checks the max delay too, so counts do not sit forever when no new
+ * increments arrive.
+ *
+ * The upserts are acknowledged (SAFE), and a bucket document is removed from
+ * the pending set only once its upsert is, so if a flush fails part way,
+ * retrying it only sends the documents that were not written (no count is
+ * added twice or lost).
+ *
+ * Counts that have not been flushed are lost if the process dies, so call
+ * close() when you are done (it also stops the timer).
+ */
+public final class KeywordCounter {
+
+    public KeywordCounter(  final DBCollection pCollection,
+                            final KeywordHasher pHasher,
+                            final int pMaxPendingFields,
+                            final long pMaxDelay)
+    { this(pCollection, pHasher, null, pMaxPendingFields, pMaxDelay); }
+
+    /**
+     * Create a counter that asks the sizer how many bucket documents to use
+     * for each group/date instead of using the hasher doc count.
+     */
+    public KeywordCounter(  final DBCollection pCollection,
+                            final KeywordHasher pHasher,
+                            final KeywordBucketSizer pSizer,
+                            final int pMaxPendingFields,
+                            final long pMaxDelay)
+    {
+        if (pMaxDelay <= 0) throw new IllegalArgumentException("the max delay must be positive: " + pMaxDelay);
+
+        _collection = pCollection;
+        _hasher = pHasher;
+        _sizer = pSizer;
+        _maxPendingFields = pMaxPendingFields;
+        _maxDelay = pMaxDelay;
+
+        _timer = new Timer("keyword-counter-flush", true);
+        _timer.schedule(new TimerTask() {
+            public void run() {
+                try { flushIfDue();
+                } catch (final Throwable t) { t.printStackTrace(); } // Retried on the next tick.
+            }
+        }, pMaxDelay, pMaxDelay);
+    }
+
+    /**
+     * Hash the word into its bucket document/field and count one occurrence.
+     */
+    public void count(final ObjectId pGroupId, final String pDate, final String pWord)
+    { count(pGroupId, pDate, pWord, 1); }
+
+    /**
+     * Hash the word into its bucket document/field and add to its count.
+     */
+    public synchronized void count( final ObjectId pGroupId,
+                                    final String pDate,
+                                    final String pWord,
+                                    final long pCount)
+    { count(pGroupId, pDate, pWord, _hasher.hash(pWord, _buckets), pCount); }
+
+    /**
+     * Add to the count of a word whose buckets were already computed by this
+     * counter's hasher (so the word is not hashed twice).
+     */
+    public synchronized void count( final ObjectId pGroupId,
+                                    final String pDate,
+                                    final String pWord,
+                                    final KeywordHasher.Buckets pBuckets,
+                                    final long pCount)
+    {
+        final int docCount = (_sizer == null) ? _hasher.getDocCount() : _sizer.docCount(pGroupId, pDate);
+        final int docBucket = (_sizer == null) ? pBuckets.getDocBucket() : (int)(pBuckets.getIdHash() % docCount);
+
+        // Get the document id.
+        final String docId = docId(pGroupId, pDate, docBucket);
+
+        // You need to be careful to escape periods... they are not allowed as keys.
+        final String field = "keywords." + pBuckets.getFirstBucket() + "." + pBuckets.getSecondBucket() + "." + pWord;
+
+        increment(docId, pGroupId, pDate, docBucket, docCount, field, pCount);
+    }
+
+    /**
+     * The id of a bucket document.
+     */
+    public static String docId(final ObjectId pGroupId, final String pDate, final int pDocBucket)
+    { return pGroupId.toString() + "-" + pDate + "-" + pDocBucket; }
+
+    /**
+     * Add to the count of a field in a bucket document. This may trigger a flush.
+     */
+    public void increment(  final String pDocId,
+                            final ObjectId pGroupId,
+                            final String pDate,
+                            final String pField,
+                            final long pCount)
+    { increment(pDocId, pGroupId, pDate, -1, -1, pField, pCount); }
+
+    private synchronized void increment(final String pDocId,
+                                        final ObjectId pGroupId,
+                                        final String pDate,
+                                        final int pDocBucket,
+                                        final int pDocCount,
+                                        final String pField,
+                                        final long pCount)
+    {
+        if (_pendingFields == 0) _firstPendingTime = System.currentTimeMillis();
+
+        PendingDoc doc = _pending.get(pDocId);
+        if (doc == null) {
+            doc = new PendingDoc(pGroupId, pDate, pDocBucket, pDocCount);
+            _pending.put(pDocId, doc);
+        }
+
+        final long [] count = doc.fields.get(pField);
+        if (count == null) {
+            doc.fields.put(pField, new long[] { pCount });
+            _pendingFields++;
+        } else count[0] += pCount;
+
+        _increments++;
+
+        if (_pendingFields >= _maxPendingFields) flush();
+        else flushIfDue();
+    }
+
+    private synchronized void flushIfDue()
+    { if (_pendingFields > 0 && (System.currentTimeMillis() - _firstPendingTime) >= _maxDelay) flush(); }
+
+    /**
+     * Send one upsert per pending bucket document.
+     */
+    public synchronized void flush() {
+        if (_pending.isEmpty()) return;
+
+        final Iterator<Map.Entry<String, PendingDoc>> iter = _pending.entrySet().iterator();
+        while (iter.hasNext()) {
+            final Map.Entry<String, PendingDoc> entry = iter.next();
+            final PendingDoc doc = entry.getValue();
+
+            // Acknowledged, so a failed write throws here and stays pending.
+            _collection.update(new BasicDBObject("_id", entry.getKey()), update(doc.groupId, doc.date, doc.docBucket, doc.docCount, doc.fields), true, false, WriteConcern.SAFE);
+
+            // Written, so a retry must not send it again.
+            iter.remove();
+            _pendingFields -= doc.fields.size();
+            _updates++;
+
+            if (_sizer != null && doc.docBucket != -1) _sizer.record(doc.groupId, doc.date, doc.docBucket, doc.fields.size());
+        }
+    }
+
+    /**
+     * The $inc/$set upsert sent for one bucket document.
+     */
+    static BasicDBObject update(final ObjectId pGroupId,
+                                final String pDate,
+                                final int pDocBucket,
+                                final int pDocCount,
+                                final Map<String, long []> pFields)
+    {
+        final BasicDBObject inc = new BasicDBObject();
+        for (final Map.Entry<String, long []> field : pFields.entrySet())
+        { inc.put(field.getKey(), field.getValue()[0]); }
+
+        final BasicDBObject toSet = new BasicDBObject("groupId", pGroupId);
+        toSet.put("date", pDate);
+        if (pDocBucket != -1) toSet.put("bucket", pDocBucket);
+        if (pDocCount != -1) toSet.put("docCount", pDocCount);
+
+        final BasicDBObject vals = new BasicDBObject("$inc", inc);
+        vals.put("$set", toSet);
+        return vals;
+    }
+
+    /**
+     * Stop the timer and flush.
+     */
+    public void close() {
+        _timer.cancel();
+        flush();
+    }
+
+    /**
+     * The number of increments received.
+     */
+    public synchronized long getIncrements() { return _increments; }
+
+    /**
+     * The number of upserts sent to the server.
+     */
+    public synchronized long getUpdates() { return _updates; }
+
+    private static final class PendingDoc {
+        private PendingDoc(final ObjectId pGroupId, final String pDate, final int pDocBucket, final int pDocCount)
+        { groupId = pGroupId; date = pDate; docBucket = pDocBucket; docCount = pDocCount; }
+
+        private final ObjectId groupId;
+        private final String date;
+        private final int docBucket;
+        private final int docCount;
+        private final HashMap<String, long []> fields = new HashMap<String, long []>();
+    }
+
+    private final DBCollection _collection;
+    private final KeywordHasher _hasher;
+    private final KeywordBucketSizer _sizer;
+    private final KeywordHasher.Buckets _buckets = new KeywordHasher.Buckets();
+    private final int _maxPendingFields;
+    private final long _maxDelay;
+    private final Timer _timer;
+
+    private final HashMap<String, PendingDoc> _pending = new HashMap<String, PendingDoc>();
+    private int _pendingFields;
+    private long _firstPendingTime;
+    private long _increments;
+    private long _updates;
+}
@@ -21,6 +21,7 @@ import com.mongodb.Mongo;
 import com.mongodb.MongoURI;
 import com.mongodb.BasicDBObject;
 import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
 import org.bson.BasicBSONObject;
 import org.bson.types.ObjectId;
 
@@ -29,13 +30,10 @@ import org.junit.Test;
 import static org.junit.Assert.*;
 
 // Java
-import java.io.InputStreamReader;
-import java.io.FileInputStream;
-import java.io.DataInputStream;
-import java.io.BufferedReader;
+import java.io.File;
+import java.util.HashMap;
 import java.util.List;
-import java.util.ArrayList;
-import java.util.zip.CRC32;
+import java.util.Map;
 
 /**
  * This is an example of a hashing keyword counter. This is a generic example
@@ -59,90 +57,220 @@ public final class KeywordCounterExample {
 
         final ObjectId groupId = ObjectId.get();
 
-        final List<String> words = readWords();
+        final KeywordCounter counter = new KeywordCounter(col, _hasher, MAX_PENDING_FIELDS, MAX_PENDING_DELAY);
 
-        //System.out.println("word count: " + words.size());
+        _tokenizer.tokenize(WORDS_FILE, new KeywordTokenizer.Listener() {
+            public void word(final String pWord) { hashAndUpdateCounter(pWord, "20111202", groupId, counter); }
+        });
 
-        for (final String word : words) hashAndUpdateCounter(word, "20111202", groupId, col);
+        counter.close();
 
+        //System.out.println("increments: " + counter.getIncrements() + " - updates: " + counter.getUpdates());
+
+        // Read back the most frequent words.
+        col.ensureIndex(new BasicDBObject("groupId", 1).append("date", 1));
+
+        final List<KeywordTopK.Keyword> top = new KeywordTopK(col, DOC_COUNT, DOC_BUCKET_COUNT, TOPK_FIRST_BUCKETS_PER_PASS).topK(groupId, "20111202", "20111202", 10);
+
+        //System.out.println("top: " + top);
+
+        assertEquals(10, top.size());
+        assertTrue(top.get(0).getCount() >= top.get(9).getCount());
     }
 
-    private static final int DOC_BUCKET_COUNT = 100;
-    private static final int DOC_COUNT = 50;
+    /**
+     * Run the same count with the words partitioned by document bucket across
+     * multiple worker threads, and check it wrote the same counts as one thread.
+     */
+    @Test
+    public void testParallel() throws Exception {
+        final Mongo mongo = new Mongo(new MongoURI("mongodb://127.0.0.1:27017/test"));
+
+        final DBCollection col =  mongo.getDB("test").getCollection("testKeywordCounterParallel");
+        col.drop();
+
+        final ObjectId groupId = ObjectId.get();
+
+        final KeywordCounterPipeline pipeline
+        = new KeywordCounterPipeline(col, _hasher, groupId, "20111202", WORKER_COUNT, MAX_PENDING_FIELDS, MAX_PENDING_DELAY);
+
+        _tokenizer.tokenize(WORDS_FILE, new KeywordTokenizer.Listener() {
+            public void word(final String pWord) throws Exception { pipeline.add(pWord); }
+        });
+
+        pipeline.close();
+
+        // The same words on one thread.
+        final DBCollection single =  mongo.getDB("test").getCollection("testKeywordCounterSingle");
+        single.drop();
+
+        final KeywordCounter counter = new KeywordCounter(single, _hasher, MAX_PENDING_FIELDS, MAX_PENDING_DELAY);
+
+        _tokenizer.tokenize(WORDS_FILE, new KeywordTokenizer.Listener() {
+            public void word(final String pWord) { counter.count(groupId, "20111202", pWord); }
+        });
 
-    // This is not thread safe... just easy for this example.
-    private static final CRC32 _hasher = new CRC32();
+        counter.close();
+
+        final Map<String, Long> expected = readCounts(single);
+        assertFalse(expected.isEmpty());
+        assertEquals(expected, readCounts(col));
+    }
 
     /**
-     * Hash the words into X buckets.
+     * Run the count through a bounded local count table that writes behind to
+     * the counter.
      */
-    private void hashAndUpdateCounter(  final String pWord,
-                                        final String pDate,
-                                        final ObjectId pGroupId,
-                                        final DBCollection pCollection)
-        throws Exception
-    {
-        _hasher.reset();
+    @Test
+    public void testCached() throws Exception {
+        final Mongo mongo = new Mongo(new MongoURI("mongodb://127.0.0.1:27017/test"));
+
+        final DBCollection col =  mongo.getDB("test").getCollection("testKeywordCounterCached");
+        col.drop();
+
+        final ObjectId groupId = ObjectId.get();
+
+        final KeywordCountCache cache
+        = new KeywordCountCache(new KeywordCounter(col, _hasher, MAX_PENDING_FIELDS, MAX_PENDING_DELAY), MAX_CACHED_WORDS, CACHE_FLUSH_INTERVAL);
+
+        _tokenizer.tokenize(WORDS_FILE, new KeywordTokenizer.Listener() {
+            public void word(final String pWord) { cache.count(groupId, "20111202", pWord); }
+        });
+
+        cache.close();
+
+        //System.out.println("evictions: " + cache.getEvictions());
+    }
+
+    /**
+     * Count the same text for a few days and let the sizer split the bucket
+     * documents once they get too big.
+     */
+    @Test
+    public void testAdaptive() throws Exception {
+        final Mongo mongo = new Mongo(new MongoURI("mongodb://127.0.0.1:27017/test"));
+
+        final DBCollection col =  mongo.getDB("test").getCollection("testKeywordCounterAdaptive");
+        col.drop();
+
+        final DBCollection layouts =  mongo.getDB("test").getCollection("testKeywordCounterLayouts");
+        layouts.drop();
+
+        final ObjectId groupId = ObjectId.get();
+
+        final KeywordBucketSizer sizer
+        = new KeywordBucketSizer(layouts, DOC_COUNT, MAX_DOC_COUNT, MAX_FIELDS_PER_DOC, MAX_UPDATES_PER_SECOND);
+
+        final KeywordCounter counter = new KeywordCounter(col, _hasher, sizer, MAX_PENDING_FIELDS, MAX_PENDING_DELAY);
+
+        for (final String date : new String [] { "20111202", "20111203", "20111204" }) {
+            _tokenizer.tokenize(WORDS_FILE, new KeywordTokenizer.Listener() {
+                public void word(final String pWord) { counter.count(groupId, date, pWord); }
+            });
+            counter.flush();
+        }
+
+        counter.close();
 
-        final byte [] raw = pWord.getBytes("UTF-8");
+        //System.out.println("doc count: " + sizer.docCount(groupId, "20111205"));
+    }
 
-        _hasher.update(raw);
-        final long idHash = _hasher.getValue();
+    /**
+     * Count with the fixed size sketch instead of a field per keyword.
+     */
+    @Test
+    public void testSketch() throws Exception {
+        final Mongo mongo = new Mongo(new MongoURI("mongodb://127.0.0.1:27017/test"));
 
-        // Get the document id.
-        final String docId = pGroupId.toString() + "-" + pDate + "-" + (idHash % DOC_COUNT);
+        final DBCollection col =  mongo.getDB("test").getCollection("testKeywordCounterSketch");
+        col.drop();
 
-        //System.out.println(docId);
+        final ObjectId groupId = ObjectId.get();
 
-        _hasher.reset();
-        _hasher.update(raw, 0, (raw.length > 6) ? 6 : raw.length);
-        final long firstHash = _hasher.getValue();
+        final KeywordSketchCounter counter = new KeywordSketchCounter(col, SKETCH_EPSILON, SKETCH_DELTA, SKETCH_HEAVY_HITTERS, SKETCH_MAX_PENDING, MAX_PENDING_DELAY);
 
-        _hasher.reset();
-        _hasher.update(raw, 0, (raw.length > 3) ? 3 : raw.length);
-        final long secondHash = _hasher.getValue();
+        _tokenizer.tokenize(WORDS_FILE, new KeywordTokenizer.Listener() {
+            public void word(final String pWord) { counter.count(groupId, "20111202", pWord); }
+        });
 
-        // You need to be careful to escape periods... they are not allowed as keys.
-        final String field = "keywords." + (firstHash % DOC_BUCKET_COUNT) + "." + (secondHash % DOC_BUCKET_COUNT) + "." + pWord;
+        counter.close();
 
-        final BasicDBObject toSet = new BasicDBObject("groupId", pGroupId);
-        toSet.put("date", pDate);
+        final KeywordSketch sketch = counter.load(groupId, "20111202");
 
-        final BasicDBObject vals = new BasicDBObject("$inc", new BasicDBObject(field, 1));
-        vals.put("$set", toSet);
+        //System.out.println("heavy hitters: " + sketch.getHeavyHitters());
 
-        pCollection.update(new BasicDBObject("_id", docId), vals, true, false);
+        assertEquals(SKETCH_HEAVY_HITTERS, sketch.getHeavyHitters().size());
+        assertTrue(sketch.estimate("the") > 0);
     }
 
+    private static final int DOC_BUCKET_COUNT = 100;
+    private static final int DOC_COUNT = 50;
+
+    // The top K query reads this many first level buckets of a bucket document per query.
+    private static final int TOPK_FIRST_BUCKETS_PER_PASS = 10;
+
+    // Flush the counter when this many distinct fields are pending or after this many ms.
+    private static final int MAX_PENDING_FIELDS = 10000;
+    private static final long MAX_PENDING_DELAY = 1000;
+
+    // Keep this many words in the local count table and write it behind this often (ms).
+    private static final int MAX_CACHED_WORDS = 20000;
+    private static final long CACHE_FLUSH_INTERVAL = 5000;
+
+    // The adaptive sizer doubles the doc count for the next date when a bucket
+    // document gets this many fields or this many updates a second (up to the max doc count).
+    private static final int MAX_DOC_COUNT = 800;
+    private static final long MAX_FIELDS_PER_DOC = 1000;
+    private static final double MAX_UPDATES_PER_SECOND = 50;
+
+    // The sketch overcounts by at most epsilon * total with probability 1 - delta.
+    private static final double SKETCH_EPSILON = 0.001;
+    private static final double SKETCH_DELTA = 0.01;
+    private static final int SKETCH_HEAVY_HITTERS = 100;
+
+    // Flush the local sketches (about 108KB each) when there are this many.
+    private static final int SKETCH_MAX_PENDING = 16;
+
+    private static final int WORKER_COUNT = Runtime.getRuntime().availableProcessors();
+
+    private static final KeywordHasher _hasher = new KeywordHasher(DOC_COUNT, DOC_BUCKET_COUNT);
+
     /**
-     * Do an simple/ugly split and pull out words (and everything else :-)).
+     * The count of every keyword in the bucket documents.
      */
-    private List<String> readWords() throws Exception {
-        final DataInputStream dis = new DataInputStream(new FileInputStream("data/war_and_peace.txt"));
-        final BufferedReader br = new BufferedReader(new InputStreamReader(dis));
-        final ArrayList<String> words = new ArrayList<String>();
-
-        boolean allOk = true;
-        String line;
-        while ((line = br.readLine()) != null) {
-            for (String word : line.split(" ")) {
-                if (word == null) continue;
-                word = word.trim();
-                if (word.equals("")) continue;
-                allOk = true;
-                for (final String ignore : IGNORE_CHARS)
-                { if (word.indexOf(ignore) != -1) { allOk = false; break; } }
-                if (!allOk) continue;
-
-                words.add(word);
+    private static Map<String, Long> readCounts(final DBCollection pCol) {
+        final HashMap<String, Long> counts = new HashMap<String, Long>();
+
+        for (final DBObject doc : pCol.find()) {
+            final DBObject keywords = (DBObject)doc.get("keywords");
+            if (keywords == null) continue;
+
+            for (final String first : keywords.keySet()) {
+                final DBObject firstBucket = (DBObject)keywords.get(first);
+                for (final String second : firstBucket.keySet()) {
+                    final DBObject secondBucket = (DBObject)firstBucket.get(second);
+                    for (final String word : secondBucket.keySet()) {
+                        final Long count = counts.get(word);
+                        counts.put(word, ((count == null) ? 0 : count) + ((Number)secondBucket.get(word)).longValue());
+                    }
+                }
             }
         }
 
-        dis.close();
-
-        return words;
+        return counts;
     }
 
-    private static final String [] IGNORE_CHARS = { "(", ")", ".", "\"", "?" };
-}
+    /**
+     * Hash the words into X buckets and hand the increment to the counter.
+     */
+    private void hashAndUpdateCounter(  final String pWord,
+                                        final String pDate,
+                                        final ObjectId pGroupId,
+                                        final KeywordCounter pCounter)
+    { pCounter.count(pGroupId, pDate, pWord); }
 
+    // Do an simple/ugly split and pull out words (and everything else :-)).
+    private static final KeywordTokenizer _tokenizer = new KeywordTokenizer("().\"?");
+
+    private static final File WORDS_FILE = new File("data/war_and_peace.txt");
+}
@@ -0,0 +1,191 @@
+/**
+ * Copyright 2011, Deft Labs.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.deftlabs.examples.mongo;
+
+// Mongo
+import com.mongodb.DBCollection;
+import org.bson.types.ObjectId;
+
+// Java
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Counts keywords on multiple worker threads. Words are partitioned by their
+ * document bucket (bucket % worker count), so each worker owns a disjoint set
+ * of bucket documents and no two workers ever update the same document.
+ *
+ * Words are handed to the workers in small batches to keep queue traffic
+ * down, together with the buckets computed to route them, so each word is
+ * hashed once. Batches are recycled. The add method is meant to be called
+ * from a single producer thread.
+ *
+ * If a worker fails, every other worker is interrupted, each worker flushes
+ * what it has counted and closes its counter, and add/close throw.
+ */
+public final class KeywordCounterPipeline {
+
+    public KeywordCounterPipeline(  final DBCollection pCollection,
+                                    final KeywordHasher pHasher,
+                                    final ObjectId pGroupId,
+                                    final String pDate,
+                                    final int pWorkerCount,
+                                    final int pMaxPendingFields,
+                                    final long pMaxDelay)
+    {
+        _hasher = pHasher;
+        _workers = new Worker[pWorkerCount];
+        _batches = new Batch[pWorkerCount];
+
+        for (int idx=0; idx < pWorkerCount; idx++) {
+            _workers[idx] = new Worker(new KeywordCounter(pCollection, pHasher, pMaxPendingFields, pMaxDelay), pGroupId, pDate);
+            _workers[idx].setName("KeywordCounterPipeline-" + idx);
+            _batches[idx] = new Batch();
+        }
+
+        for (final Worker worker : _workers) worker.start();
+    }
+
+    /**
+     * Route the word to the worker that owns its bucket document. Throws
+     * IllegalStateException once a worker has failed.
+     */
+    public void add(final String pWord) throws InterruptedException {
+        checkFailure();
+
+        final KeywordHasher.Buckets buckets = _hasher.hash(pWord, _spare);
+        final int worker = buckets.getDocBucket() % _workers.length;
+
+        // Swap the hashed buckets into the batch slot and keep its old ones.
+        final Batch batch = _batches[worker];
+        _spare = batch.buckets[batch.size];
+        batch.words[batch.size] = pWord;
+        batch.buckets[batch.size++] = buckets;
+
+        if (batch.size == BATCH_SIZE) handOff(worker);
+    }
+
+    /**
+     * Send the remaining words, wait for the workers to flush and stop them.
+     */
+    public void close() throws InterruptedException {
+        try {
+            for (int idx=0; idx < _workers.length; idx++) {
+                if (_batches[idx].size > 0) handOff(idx);
+                send(idx, END);
+            }
+        } catch (final InterruptedException ie) {
+            abort(); throw ie;
+        } finally {
+            for (final Worker worker : _workers) worker.join();
+        }
+
+        checkFailure();
+    }
+
+    private void checkFailure() {
+        final Throwable failure = _failure.get();
+        if (failure != null) throw new IllegalStateException("keyword worker failed", failure);
+    }
+
+    /**
+     * Record the first failure and interrupt the workers so they stop.
+     */
+    private void fail(final Throwable pFailure) {
+        if (_failure.compareAndSet(null, pFailure)) abort();
+    }
+
+    private void abort() {
+        for (final Worker worker : _workers) if (worker != Thread.currentThread()) worker.interrupt();
+    }
+
+    /**
+     * The total number of upserts sent by all workers.
+     */
+    public long getUpdates() {
+        long updates = 0;
+        for (final Worker worker : _workers) updates += worker._counter.getUpdates();
+        return updates;
+    }
+
+    private void handOff(final int pWorker) throws InterruptedException {
+        send(pWorker, _batches[pWorker]);
+
+        final Batch free = _free.poll();
+        _batches[pWorker] = (free == null) ? new Batch() : free;
+    }
+
+    /**
+     * Queue a batch, giving up if a worker fails while the queue is full
+     * (the workers stop taking once one has failed).
+     */
+    private void send(final int pWorker, final Batch pBatch) throws InterruptedException {
+        while (!_workers[pWorker]._queue.offer(pBatch, SEND_CHECK_MILLIS, TimeUnit.MILLISECONDS)) checkFailure();
+    }
+
+    private static final class Batch {
+        private final String [] words = new String[BATCH_SIZE];
+        private final KeywordHasher.Buckets [] buckets = new KeywordHasher.Buckets[BATCH_SIZE];
+        private int size;
+
+        private Batch() { for (int idx=0; idx < BATCH_SIZE; idx++) buckets[idx] = new KeywordHasher.Buckets(); }
+    }
+
+    private final class Worker extends Thread {
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    final Batch batch = _queue.take();
+                    if (batch == END) break;
+
+                    for (int idx=0; idx < batch.size; idx++) _counter.count(_groupId, _date, batch.words[idx], batch.buckets[idx], 1);
+
+                    batch.size = 0;
+                    _free.offer(batch);
+                }
+            } catch (final InterruptedException ie) { // Another worker failed.
+            } catch (final Throwable t) { fail(t); }
+
+            // Flush what was counted and stop the timer.
+            try { _counter.close();
+            } catch (final Throwable t) { fail(t); }
+        }
+
+        private Worker(final KeywordCounter pCounter, final ObjectId pGroupId, final String pDate)
+        { _counter = pCounter; _groupId = pGroupId; _date = pDate; }
+
+        private final KeywordCounter _counter;
+        private final ObjectId _groupId;
+        private final String _date;
+        private final ArrayBlockingQueue<Batch> _queue = new ArrayBlockingQueue<Batch>(QUEUE_SIZE);
+    }
+
+    private static final int BATCH_SIZE = 1000;
+    private static final int QUEUE_SIZE = 16;
+    private static final long SEND_CHECK_MILLIS = 100;
+    private static final Batch END = new Batch();
+
+    private final KeywordHasher _hasher;
+    private KeywordHasher.Buckets _spare = new KeywordHasher.Buckets();
+    private final Worker [] _workers;
+    private final Batch [] _batches;
+    private final ConcurrentLinkedQueue<Batch> _free = new ConcurrentLinkedQueue<Batch>();
+    private final AtomicReference<Throwable> _failure = new AtomicReference<Throwable>();
+}
@@ -0,0 +1,152 @@
+/**
+ * Copyright 2011, Deft Labs.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.deftlabs.examples.mongo;
+
+/**
+ * Assigns keywords to buckets. This computes the same values as running a
+ * java.util.zip.CRC32 over the UTF-8 bytes of the word (the full word, the
+ * first six bytes and the first three bytes), but it does it in one pass over
+ * the characters and without creating a byte array.
+ *
+ * The hasher is immutable and thread safe. The Buckets result is not, so
+ * each thread should reuse its own.
+ */
+public final class KeywordHasher {
+
+    public KeywordHasher(final int pDocCount, final int pDocBucketCount)
+    { _docCount = pDocCount; _docBucketCount = pDocBucketCount; }
+
+    /**
+     * Hash the word and set the bucket values in the result.
+     */
+    public Buckets hash(final CharSequence pWord, final Buckets pResult) {
+        final int len = pWord.length();
+
+        int crc = 0xffffffff;
+        int byteCount = 0;
+        int firstCrc = 0;
+        int secondCrc = 0;
+
+        for (int idx=0; idx < len; idx++) {
+            final char c = pWord.charAt(idx);
+
+            // Encode the char as UTF-8 (the same way String.getBytes does) and
+            // feed each byte to the crc.
+            if (c < 0x80) {
+                crc = update(crc, c);
+                if (++byteCount == 3) secondCrc = crc; else if (byteCount == 6) firstCrc = crc;
+
+            } else if (c < 0x800) {
+                crc = update(crc, 0xc0 | (c >> 6));
+                if (++byteCount == 3) secondCrc = crc; else if (byteCount == 6) firstCrc = crc;
+                crc = update(crc, 0x80 | (c & 0x3f));
+                if (++byteCount == 3) secondCrc = crc; else if (byteCount == 6) firstCrc = crc;
+
+            } else if (Character.isHighSurrogate(c) && (idx + 1) < len && Character.isLowSurrogate(pWord.charAt(idx + 1))) {
+                final int cp = Character.toCodePoint(c, pWord.charAt(++idx));
+                crc = update(crc, 0xf0 | (cp >> 18));
+                if (++byteCount == 3) secondCrc = crc; else if (byteCount == 6) firstCrc = crc;
+                crc = update(crc, 0x80 | ((cp >> 12) & 0x3f));
+                if (++byteCount == 3) secondCrc = crc; else if (byteCount == 6) firstCrc = crc;
+                crc = update(crc, 0x80 | ((cp >> 6) & 0x3f));
+                if (++byteCount == 3) secondCrc = crc; else if (byteCount == 6) firstCrc = crc;
+                crc = update(crc, 0x80 | (cp & 0x3f));
+                if (++byteCount == 3) secondCrc = crc; else if (byteCount == 6) firstCrc = crc;
+
+            } else if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+                // A malformed surrogate is replaced with '?' by the encoder.
+                crc = update(crc, '?');
+                if (++byteCount == 3) secondCrc = crc; else if (byteCount == 6) firstCrc = crc;
+
+            } else {
+                crc = update(crc, 0xe0 | (c >> 12));
+                if (++byteCount == 3) secondCrc = crc; else if (byteCount == 6) firstCrc = crc;
+                crc = update(crc, 0x80 | ((c >> 6) & 0x3f));
+                if (++byteCount == 3) secondCrc = crc; else if (byteCount == 6) firstCrc = crc;
+                crc = update(crc, 0x80 | (c & 0x3f));
+                if (++byteCount == 3) secondCrc = crc; else if (byteCount == 6) firstCrc = crc;
+            }
+        }
+
+        // Short words use the full hash for the prefix hashes.
+        if (byteCount < 3) secondCrc = crc;
+        if (byteCount < 6) firstCrc = crc;
+
+        final long idHash = (~crc) & 0xffffffffL;
+        final long firstHash = (~firstCrc) & 0xffffffffL;
+        final long secondHash = (~secondCrc) & 0xffffffffL;
+
+        pResult._idHash = idHash;
+        pResult._docBucket = (int)(idHash % _docCount);
+        pResult._firstBucket = (int)(firstHash % _docBucketCount);
+        pResult._secondBucket = (int)(secondHash % _docBucketCount);
+
+        return pResult;
+    }
+
+    public int getDocCount() { return _docCount; }
+
+    public int getDocBucketCount() { return _docBucketCount; }
+
+    private static int update(final int pCrc, final int pByte)
+    { return CRC_TABLE[(pCrc ^ pByte) & 0xff] ^ (pCrc >>> 8); }
+
+    /**
+     * The bucket assignment for a word. This is mutable so that callers can
+     * reuse one per thread.
+     */
+    public static final class Buckets {
+
+        /**
+         * The crc of the full word.
+         */
+        public long getIdHash() { return _idHash; }
+
+        /**
+         * The document the word is counted in.
+         */
+        public int getDocBucket() { return _docBucket; }
+
+        /**
+         * The first level bucket in the document (from the first six bytes).
+         */
+        public int getFirstBucket() { return _firstBucket; }
+
+        /**
+         * The second level bucket in the document (from the first three bytes).
+         */
+        public int getSecondBucket() { return _secondBucket; }
+
+        private long _idHash;
+        private int _docBucket;
+        private int _firstBucket;
+        private int _secondBucket;
+    }
+
+    private static final int [] CRC_TABLE = new int[256];
+
+    static {
+        for (int idx=0; idx < 256; idx++) {
+            int crc = idx;
+            for (int bit=0; bit < 8; bit++) crc = ((crc & 1) != 0) ? (crc >>> 1) ^ 0xedb88320 : (crc >>> 1);
+            CRC_TABLE[idx] = crc;
+        }
+    }
+
+    private final int _docCount;
+    private final int _docBucketCount;
+}
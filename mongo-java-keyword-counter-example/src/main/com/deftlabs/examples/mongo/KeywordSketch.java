@@ -0,0 +1,249 @@
+/**
+ * Copyright 2011, Deft Labs.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.deftlabs.examples.mongo;
+
+// Java
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.HashMap;
+import java.util.HashSet;
+
+/**
+ * A Count-Min Sketch of keyword counts with a small list of heavy hitters.
+ *
+ * The sketch is depth rows of width counters. Each word increments one
+ * counter per row and its estimate is the smallest of those counters. The
+ * estimate is never low, and with probability 1 - delta it is high by at most
+ * epsilon * total, where width = e / epsilon and depth = ln(1 / delta).
+ *
+ * Because the sketch can not list the words it has seen, the words with the
+ * highest estimates are kept on the side (up to the heavy hitter max), in an
+ * indexed min heap. A word that does not beat the smallest one is turned away
+ * in constant time, and any other update is O(log max).
+ *
+ * This is not thread safe.
+ */
+public final class KeywordSketch {
+
+    public KeywordSketch(final double pEpsilon, final double pDelta, final int pMaxHeavyHitters) {
+        this((int)Math.ceil(Math.E / pEpsilon), (int)Math.ceil(Math.log(1 / pDelta)), pMaxHeavyHitters);
+    }
+
+    public KeywordSketch(final int pWidth, final int pDepth, final int pMaxHeavyHitters) {
+        _width = pWidth;
+        _depth = pDepth;
+        _maxHeavyHitters = pMaxHeavyHitters;
+        _counters = new long[pWidth * pDepth];
+        _hitterWords = new String[pMaxHeavyHitters];
+        _hitterCounts = new long[pMaxHeavyHitters];
+    }
+
+    /**
+     * Add to the count of a word.
+     */
+    public void add(final String pWord, final long pCount) {
+        final long hash1 = _hasher.hash(pWord, _buckets).getIdHash();
+        final long hash2 = hash2(pWord);
+
+        long estimate = Long.MAX_VALUE;
+        for (int row=0; row < _depth; row++) {
+            final int idx = (row * _width) + column(hash1, hash2, row);
+            _counters[idx] += pCount;
+            if (_counters[idx] < estimate) estimate = _counters[idx];
+        }
+
+        _total += pCount;
+        offerHeavyHitter(pWord, estimate);
+    }
+
+    /**
+     * The estimated count of a word.
+     */
+    public long estimate(final String pWord) {
+        final long hash1 = _hasher.hash(pWord, _buckets).getIdHash();
+        final long hash2 = hash2(pWord);
+
+        long estimate = Long.MAX_VALUE;
+        for (int row=0; row < _depth; row++) {
+            final long val = _counters[(row * _width) + column(hash1, hash2, row)];
+            if (val < estimate) estimate = val;
+        }
+        return estimate;
+    }
+
+    /**
+     * Add the other sketch into this one. They must have the same width and depth.
+     */
+    public void merge(final KeywordSketch pOther) {
+        if (pOther._width != _width || pOther._depth != _depth)
+        { throw new IllegalArgumentException("sketch sizes do not match: " + pOther._width + "x" + pOther._depth + " - expecting: " + _width + "x" + _depth); }
+
+        for (int idx=0; idx < _counters.length; idx++) _counters[idx] += pOther._counters[idx];
+        _total += pOther._total;
+
+        // Re-estimate every candidate against the merged counters.
+        final HashSet<String> candidates = new HashSet<String>(_hitterIndex.keySet());
+        candidates.addAll(pOther._hitterIndex.keySet());
+
+        _hitterIndex.clear();
+        _hitterCount = 0;
+        for (final String word : candidates) offerHeavyHitter(word, estimate(word));
+    }
+
+    /**
+     * The heavy hitters and their estimated counts (a copy).
+     */
+    public Map<String, Long> getHeavyHitters() {
+        final HashMap<String, Long> hitters = new HashMap<String, Long>(_hitterCount * 2);
+        for (int idx=0; idx < _hitterCount; idx++) hitters.put(_hitterWords[idx], _hitterCounts[idx]);
+        return hitters;
+    }
+
+    /**
+     * The total of all counts added.
+     */
+    public long getTotal() { return _total; }
+
+    public int getWidth() { return _width; }
+
+    public int getDepth() { return _depth; }
+
+    /**
+     * The counters as bytes: width, depth, total and then the counters.
+     */
+    public byte [] toBytes() {
+        final ByteBuffer buf = ByteBuffer.allocate(16 + (_counters.length * 8));
+        buf.putInt(_width);
+        buf.putInt(_depth);
+        buf.putLong(_total);
+        for (final long val : _counters) buf.putLong(val);
+        return buf.array();
+    }
+
+    /**
+     * Read the counters written by toBytes. The heavy hitters are stored
+     * separately, so add them with putHeavyHitter.
+     */
+    public static KeywordSketch fromBytes(final byte [] pBytes, final int pMaxHeavyHitters) {
+        final ByteBuffer buf = ByteBuffer.wrap(pBytes);
+        final KeywordSketch sketch = new KeywordSketch(buf.getInt(), buf.getInt(), pMaxHeavyHitters);
+        sketch._total = buf.getLong();
+        for (int idx=0; idx < sketch._counters.length; idx++) sketch._counters[idx] = buf.getLong();
+        return sketch;
+    }
+
+    /**
+     * Restore a stored heavy hitter.
+     */
+    public void putHeavyHitter(final String pWord) { offerHeavyHitter(pWord, estimate(pWord)); }
+
+    private int column(final long pHash1, final long pHash2, final int pRow)
+    { return (int)((pHash1 + (pRow * pHash2)) % _width); }
+
+    /**
+     * The step between the rows' columns. It is never 0 mod the width, or
+     * every row would use the same column.
+     */
+    private long hash2(final String pWord) {
+        final long hash2 = (pWord.hashCode() & 0xffffffffL) % _width;
+        return (hash2 == 0) ? 1 : hash2;
+    }
+
+    /**
+     * Keep the word if it is already a heavy hitter, there is room or it beats
+     * the smallest one (the root of the heap).
+     */
+    private void offerHeavyHitter(final String pWord, final long pEstimate) {
+        if (_maxHeavyHitters == 0) return;
+
+        final Integer pos = _hitterIndex.get(pWord);
+        if (pos != null) {
+            final long old = _hitterCounts[pos];
+            _hitterCounts[pos] = pEstimate;
+            if (pEstimate < old) siftUp(pos); else siftDown(pos);
+            return;
+        }
+
+        if (_hitterCount < _maxHeavyHitters) {
+            _hitterWords[_hitterCount] = pWord;
+            _hitterCounts[_hitterCount] = pEstimate;
+            _hitterIndex.put(pWord, _hitterCount);
+            siftUp(_hitterCount++);
+            return;
+        }
+
+        if (pEstimate <= _hitterCounts[0]) return;
+
+        // Replace the smallest.
+        _hitterIndex.remove(_hitterWords[0]);
+        _hitterWords[0] = pWord;
+        _hitterCounts[0] = pEstimate;
+        _hitterIndex.put(pWord, 0);
+        siftDown(0);
+    }
+
+    private void siftUp(int pPos) {
+        while (pPos > 0) {
+            final int parent = (pPos - 1) / 2;
+            if (_hitterCounts[parent] <= _hitterCounts[pPos]) return;
+            swap(pPos, parent);
+            pPos = parent;
+        }
+    }
+
+    private void siftDown(int pPos) {
+        while (true) {
+            final int left = (pPos * 2) + 1;
+            if (left >= _hitterCount) return;
+
+            int smallest = left;
+            if (left + 1 < _hitterCount && _hitterCounts[left + 1] < _hitterCounts[left]) smallest = left + 1;
+            if (_hitterCounts[pPos] <= _hitterCounts[smallest]) return;
+
+            swap(pPos, smallest);
+            pPos = smallest;
+        }
+    }
+
+    private void swap(final int pA, final int pB) {
+        final String word = _hitterWords[pA];
+        final long count = _hitterCounts[pA];
+        _hitterWords[pA] = _hitterWords[pB];
+        _hitterCounts[pA] = _hitterCounts[pB];
+        _hitterWords[pB] = word;
+        _hitterCounts[pB] = count;
+        _hitterIndex.put(_hitterWords[pA], pA);
+        _hitterIndex.put(_hitterWords[pB], pB);
+    }
+
+    // Only the full word crc is used, so the doc counts do not matter.
+    private static final KeywordHasher _hasher = new KeywordHasher(1, 1);
+
+    private final KeywordHasher.Buckets _buckets = new KeywordHasher.Buckets();
+
+    private final int _width;
+    private final int _depth;
+    private final int _maxHeavyHitters;
+    private final long [] _counters;
+
+    // The heavy hitters as a min heap on the count, and each word's heap position.
+    private final String [] _hitterWords;
+    private final long [] _hitterCounts;
+    private final HashMap<String, Integer> _hitterIndex = new HashMap<String, Integer>();
+    private int _hitterCount;
+    private long _total;
+}
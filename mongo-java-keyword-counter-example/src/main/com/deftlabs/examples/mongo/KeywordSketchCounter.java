@@ -0,0 +1,225 @@
+/**
+ * Copyright 2011, Deft Labs.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.deftlabs.examples.mongo;
+
+// Mongo
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.MongoException;
+import com.mongodb.WriteConcern;
+import org.bson.types.ObjectId;
+
+// Java
+import java.util.Map;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Random;
+import java.util.Timer;
+import java.util.TimerTask;
+
+/**
+ * The approximate counting mode. Instead of one field per keyword, each
+ * group/date has one document with a fixed size Count-Min Sketch (stored as
+ * binary) and a list of heavy hitters, so the document size does not grow
+ * with the vocabulary.
+ *
+ * Counts go into a local sketch per group/date. On flush the stored sketch is
+ * read, merged with the local one and written back. The write is conditional
+ * on the version that was read, and it is retried if another writer got there
+ * first, so concurrent counters do not lose each other's counts. A save is
+ * tried at most MAX_SAVE_ATTEMPTS times with a random, growing backoff; if it
+ * keeps losing, flush throws and the sketch stays pending for the next flush.
+ *
+ * A local sketch is about 8 * width * depth bytes, so the number of pending
+ * sketches is bounded: they are all flushed when a new group/date would go
+ * past the max, and when the oldest one is older than the max delay (checked
+ * by a background timer as well). Call close() when you are done.
+ */
+public final class KeywordSketchCounter {
+
+    public KeywordSketchCounter(final DBCollection pCollection,
+                                final double pEpsilon,
+                                final double pDelta,
+                                final int pMaxHeavyHitters,
+                                final int pMaxPendingSketches,
+                                final long pMaxDelay)
+    {
+        if (pMaxDelay <= 0) throw new IllegalArgumentException("the max delay must be positive: " + pMaxDelay);
+
+        _collection = pCollection;
+        _epsilon = pEpsilon;
+        _delta = pDelta;
+        _maxHeavyHitters = pMaxHeavyHitters;
+        _maxPendingSketches = pMaxPendingSketches;
+        _maxDelay = pMaxDelay;
+
+        _timer = new Timer("keyword-sketch-flush", true);
+        _timer.schedule(new TimerTask() {
+            public void run() {
+                try { flushIfDue();
+                } catch (final Throwable t) { t.printStackTrace(); } // Retried on the next tick.
+            }
+        }, pMaxDelay, pMaxDelay);
+    }
+
+    /**
+     * Count one occurrence of the word.
+     */
+    public synchronized void count(final ObjectId pGroupId, final String pDate, final String pWord) {
+        final String docId = pGroupId.toString() + "-" + pDate;
+
+        PendingSketch pending = _pending.get(docId);
+        if (pending == null) {
+            if (_pending.size() >= _maxPendingSketches) flush();
+            if (_pending.isEmpty()) _firstPendingTime = System.currentTimeMillis();
+
+            pending = new PendingSketch(pGroupId, pDate, new KeywordSketch(_epsilon, _delta, _maxHeavyHitters));
+            _pending.put(docId, pending);
+        }
+
+        pending.sketch.add(pWord, 1);
+
+        flushIfDue();
+    }
+
+    private synchronized void flushIfDue()
+    { if (!_pending.isEmpty() && (System.currentTimeMillis() - _firstPendingTime) >= _maxDelay) flush(); }
+
+    /**
+     * Merge the local sketches into the stored ones. Throws
+     * IllegalStateException if a save keeps losing to other writers.
+     */
+    public synchronized void flush() {
+        final Iterator<Map.Entry<String, PendingSketch>> iter = _pending.entrySet().iterator();
+        while (iter.hasNext()) {
+            final Map.Entry<String, PendingSketch> entry = iter.next();
+            saveWithRetry(entry.getKey(), entry.getValue());
+
+            // Saved, so a retry must not merge it again.
+            iter.remove();
+        }
+    }
+
+    /**
+     * Stop the timer and flush.
+     */
+    public void close() {
+        _timer.cancel();
+        flush();
+    }
+
+    /**
+     * Load the stored sketch for the group/date (null if there is none).
+     */
+    public KeywordSketch load(final ObjectId pGroupId, final String pDate)
+    { return toSketch(_collection.findOne(new BasicDBObject("_id", pGroupId.toString() + "-" + pDate))); }
+
+    private void saveWithRetry(final String pDocId, final PendingSketch pPending) {
+        for (int attempt=1; !save(pDocId, pPending); attempt++) {
+            if (attempt == MAX_SAVE_ATTEMPTS)
+            { throw new IllegalStateException("sketch save lost " + attempt + " times to other writers: " + pDocId); }
+
+            // Back off a random, growing amount so the writers stop colliding.
+            try { Thread.sleep(1 + _random.nextInt(Math.min(MAX_BACKOFF_MILLIS, 1 << attempt)));
+            } catch (final InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("interrupted saving sketch: " + pDocId, ie);
+            }
+        }
+    }
+
+    /**
+     * Try to write the merged sketch. Returns false if the stored version
+     * changed underneath us.
+     */
+    private boolean save(final String pDocId, final PendingSketch pPending) {
+        final DBObject stored = _collection.findOne(new BasicDBObject("_id", pDocId));
+
+        final KeywordSketch merged = toSketch(stored);
+        if (merged != null) merged.merge(pPending.sketch);
+
+        final KeywordSketch sketch = (merged != null) ? merged : pPending.sketch;
+
+        final BasicDBList heavyHitters = new BasicDBList();
+        for (final Map.Entry<String, Long> hitter : sketch.getHeavyHitters().entrySet()) {
+            final BasicDBObject val = new BasicDBObject("word", hitter.getKey());
+            val.put("count", hitter.getValue());
+            heavyHitters.add(val);
+        }
+
+        final BasicDBObject doc = new BasicDBObject("_id", pDocId);
+        doc.put("groupId", pPending.groupId);
+        doc.put("date", pPending.date);
+        doc.put("total", sketch.getTotal());
+        doc.put("sketch", sketch.toBytes());
+        doc.put("heavyHitters", heavyHitters);
+
+        if (stored == null) {
+            doc.put("version", 1L);
+            try { _collection.insert(doc, WriteConcern.SAFE);
+            } catch (final MongoException.DuplicateKey dk) { return false; } // Someone else inserted first.
+            return true;
+        }
+
+        final long version = ((Number)stored.get("version")).longValue();
+        doc.put("version", version + 1);
+
+        final BasicDBObject query = new BasicDBObject("_id", pDocId);
+        query.put("version", version);
+
+        return _collection.update(query, doc, false, false, WriteConcern.SAFE).getN() == 1;
+    }
+
+    private KeywordSketch toSketch(final DBObject pDoc) {
+        if (pDoc == null) return null;
+
+        final KeywordSketch sketch = KeywordSketch.fromBytes((byte [])pDoc.get("sketch"), _maxHeavyHitters);
+
+        final BasicDBList heavyHitters = (BasicDBList)pDoc.get("heavyHitters");
+        if (heavyHitters != null) {
+            for (final Object val : heavyHitters) sketch.putHeavyHitter((String)((DBObject)val).get("word"));
+        }
+
+        return sketch;
+    }
+
+    private static final class PendingSketch {
+        private PendingSketch(final ObjectId pGroupId, final String pDate, final KeywordSketch pSketch)
+        { groupId = pGroupId; date = pDate; sketch = pSketch; }
+
+        private final ObjectId groupId;
+        private final String date;
+        private final KeywordSketch sketch;
+    }
+
+    private static final int MAX_SAVE_ATTEMPTS = 10;
+    private static final int MAX_BACKOFF_MILLIS = 100;
+
+    private final DBCollection _collection;
+    private final Random _random = new Random();
+    private final double _epsilon;
+    private final double _delta;
+    private final int _maxHeavyHitters;
+    private final int _maxPendingSketches;
+    private final long _maxDelay;
+    private final Timer _timer;
+    private long _firstPendingTime;
+
+    private final HashMap<String, PendingSketch> _pending = new HashMap<String, PendingSketch>();
+}
@@ -0,0 +1,131 @@
+/**
+ * Copyright 2011, Deft Labs.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.deftlabs.examples.mongo;
+
+// Java
+import java.io.File;
+import java.io.FileInputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * A streaming version of the simple/ugly word split. The file is read through
+ * a fixed size NIO buffer and decoded in place, and each word is handed to the
+ * listener as soon as it is found. Memory use does not depend on the file size.
+ *
+ * Words are separated by spaces and line breaks and are trimmed. Any word
+ * that contains one of the ignore chars is skipped.
+ */
+public final class KeywordTokenizer {
+
+    /**
+     * Receives the words in the order they appear in the file.
+     */
+    public interface Listener {
+        public void word(final String pWord) throws Exception;
+    }
+
+    public KeywordTokenizer(final String pIgnoreChars) {
+        for (int idx=0; idx < pIgnoreChars.length(); idx++) {
+            final char c = pIgnoreChars.charAt(idx);
+            if (c >= _ignore.length) throw new IllegalArgumentException("only ascii ignore chars are supported: " + c);
+            _ignore[c] = true;
+        }
+    }
+
+    /**
+     * Read the file and send each word to the listener.
+     */
+    public void tokenize(final File pFile, final Listener pListener) throws Exception {
+        final FileInputStream fis = new FileInputStream(pFile);
+        try {
+            final FileChannel channel = fis.getChannel();
+
+            final CharsetDecoder decoder = Charset.forName("UTF-8").newDecoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+            final ByteBuffer bytes = ByteBuffer.allocateDirect(BUFFER_SIZE);
+            final CharBuffer chars = CharBuffer.allocate(BUFFER_SIZE);
+            final Token token = new Token();
+
+            boolean eof = false;
+            while (!eof) {
+                eof = (channel.read(bytes) == -1);
+                bytes.flip();
+
+                // Decode everything we have - this loops when the char buffer fills up.
+                while (decoder.decode(bytes, chars, eof).isOverflow()) drain(chars, token, pListener);
+                drain(chars, token, pListener);
+
+                bytes.compact();
+            }
+
+            while (decoder.flush(chars).isOverflow()) drain(chars, token, pListener);
+            drain(chars, token, pListener);
+
+            token.end(pListener);
+        } finally { fis.close(); }
+    }
+
+    private void drain(final CharBuffer pChars, final Token pToken, final Listener pListener) throws Exception {
+        pChars.flip();
+
+        while (pChars.hasRemaining()) {
+            final char c = pChars.get();
+            if (c == ' ' || c == '\n' || c == '\r') { pToken.end(pListener); continue; }
+
+            if (c < _ignore.length && _ignore[c]) pToken.ignored = true;
+            pToken.chars.append(c);
+        }
+
+        pChars.clear();
+    }
+
+    /**
+     * The word being built. The buffer is reused for every word.
+     */
+    private static final class Token {
+        private void end(final Listener pListener) throws Exception {
+            final int len = chars.length();
+            if (len == 0) return;
+
+            if (!ignored) {
+                // Trim the same way String.trim does.
+                int start = 0;
+                int end = len;
+                while (start < end && chars.charAt(start) <= ' ') start++;
+                while (end > start && chars.charAt(end - 1) <= ' ') end--;
+                if (start < end) pListener.word(chars.substring(start, end));
+            }
+
+            chars.setLength(0);
+            ignored = false;
+        }
+
+        private final StringBuilder chars = new StringBuilder(64);
+        private boolean ignored;
+    }
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final boolean [] _ignore = new boolean[128];
+}
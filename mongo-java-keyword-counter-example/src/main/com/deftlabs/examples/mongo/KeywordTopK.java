@@ -0,0 +1,170 @@
+/**
+ * Copyright 2011, Deft Labs.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.deftlabs.examples.mongo;
+
+// Mongo
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import org.bson.types.ObjectId;
+
+// Java
+import java.util.Map;
+import java.util.HashMap;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+
+/**
+ * Finds the most frequent keywords for a group over a date range.
+ *
+ * A keyword is counted in a different document for each date, so the counts
+ * have to be summed before they can be ranked. A keyword always lands in the
+ * same bucket modulo the base doc count (the doc count is only ever doubled),
+ * so the bucket documents are read one base bucket at a time. A keyword also
+ * always lands in the same first level bucket, so each pass only asks the
+ * server for a slice of the first level buckets (keywords.<first>) of the
+ * base bucket. Only the keywords of that slice are merged in memory, and then
+ * they are offered to a bounded min heap of size K.
+ *
+ * Memory is O(K + vocabulary * firstBucketsPerPass / (base doc count * doc
+ * bucket count)) rather than O(K): the keywords of one slice have to be summed
+ * across dates before they can be ranked. Fewer first buckets per pass means
+ * less memory and more queries.
+ *
+ * An index on { groupId : 1, date : 1 } keeps each pass cheap.
+ */
+public final class KeywordTopK {
+
+    /**
+     * @param pCollection The bucket documents.
+     * @param pBaseDocCount The base doc count of the hasher (or sizer).
+     * @param pDocBucketCount The first/second level bucket count of the hasher.
+     * @param pFirstBucketsPerPass The first level buckets read in one pass.
+     */
+    public KeywordTopK( final DBCollection pCollection,
+                        final int pBaseDocCount,
+                        final int pDocBucketCount,
+                        final int pFirstBucketsPerPass)
+    {
+        _collection = pCollection;
+        _baseDocCount = pBaseDocCount;
+        _docBucketCount = pDocBucketCount;
+        _firstBucketsPerPass = pFirstBucketsPerPass;
+    }
+
+    /**
+     * Returns up to K keywords, most frequent first. The dates are inclusive.
+     */
+    public List<Keyword> topK(  final ObjectId pGroupId,
+                                final String pFromDate,
+                                final String pToDate,
+                                final int pK)
+    {
+        final PriorityQueue<Keyword> heap = new PriorityQueue<Keyword>(pK + 1, ASCENDING);
+
+        final BasicDBObject dateRange = new BasicDBObject("$gte", pFromDate);
+        dateRange.put("$lte", pToDate);
+
+        final HashMap<String, long []> counts = new HashMap<String, long []>();
+
+        for (int bucket=0; bucket < _baseDocCount; bucket++) {
+            final BasicDBObject query = new BasicDBObject("groupId", pGroupId);
+            query.put("date", dateRange);
+            query.put("bucket", new BasicDBObject("$mod", new int [] { _baseDocCount, bucket }));
+
+            for (int first=0; first < _docBucketCount; first += _firstBucketsPerPass) {
+                // Only this slice of the first level buckets.
+                final BasicDBObject fields = new BasicDBObject("_id", 0);
+                for (int idx=first; idx < Math.min(first + _firstBucketsPerPass, _docBucketCount); idx++) fields.put("keywords." + idx, 1);
+
+                final DBCursor cur = _collection.find(query, fields);
+                try {
+                    while (cur.hasNext()) {
+                        final DBObject keywords = (DBObject)cur.next().get("keywords");
+                        if (keywords != null) sum(keywords, counts);
+                    }
+                } finally { cur.close(); }
+
+                for (final Map.Entry<String, long []> entry : counts.entrySet()) {
+                    final long count = entry.getValue()[0];
+                    if (heap.size() == pK) {
+                        if (count <= heap.peek().getCount()) continue;
+                        heap.poll();
+                    }
+                    heap.add(new Keyword(entry.getKey(), count));
+                }
+
+                counts.clear();
+            }
+        }
+
+        final ArrayList<Keyword> result = new ArrayList<Keyword>(heap);
+        Collections.sort(result, Collections.reverseOrder(ASCENDING));
+        return result;
+    }
+
+    /**
+     * Walk the keywords.first.second.word tree and add up the counts.
+     */
+    private static void sum(final DBObject pKeywords, final HashMap<String, long []> pCounts) {
+        for (final String first : pKeywords.keySet()) {
+            final DBObject firstLevel = (DBObject)pKeywords.get(first);
+            for (final String second : firstLevel.keySet()) {
+                final DBObject secondLevel = (DBObject)firstLevel.get(second);
+                for (final String word : secondLevel.keySet()) {
+                    final long count = ((Number)secondLevel.get(word)).longValue();
+                    final long [] total = pCounts.get(word);
+                    if (total == null) pCounts.put(word, new long [] { count });
+                    else total[0] += count;
+                }
+            }
+        }
+    }
+
+    /**
+     * A keyword and its count.
+     */
+    public static final class Keyword {
+        private Keyword(final String pWord, final long pCount) { _word = pWord; _count = pCount; }
+
+        public String getWord() { return _word; }
+        public long getCount() { return _count; }
+
+        @Override
+        public String toString() { return _word + ": " + _count; }
+
+        private final String _word;
+        private final long _count;
+    }
+
+    private static final Comparator<Keyword> ASCENDING = new Comparator<Keyword>() {
+        public int compare(final Keyword pA, final Keyword pB) {
+            if (pA._count != pB._count) return (pA._count < pB._count) ? -1 : 1;
+            // Break ties by word so results are stable.
+            return pB._word.compareTo(pA._word);
+        }
+    };
+
+    private final DBCollection _collection;
+    private final int _baseDocCount;
+    private final int _docBucketCount;
+    private final int _firstBucketsPerPass;
+}
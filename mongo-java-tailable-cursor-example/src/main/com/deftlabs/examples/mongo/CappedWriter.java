@@ -0,0 +1,236 @@
+/**
+ * Copyright 2011, Deft Labs.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.deftlabs.examples.mongo;
+
+// Mongo
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.WriteConcern;
+
+// Java
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Batched writes to a capped collection.
+ *
+ * Each writing thread gets its own Producer, which buffers documents and
+ * sends them in one multi-document insert when the batch is full, or when the
+ * oldest buffered document has waited the linger time (checked by a
+ * background thread, so a quiet producer does not hold documents back). The
+ * documents of a producer are inserted in the order they were written, so the
+ * capped collection keeps them in that order. Documents of different
+ * producers interleave by batch.
+ *
+ * With a ts field, the writer sets it when a batch is sent (not when a
+ * document is written), from one clock for all of the producers that never
+ * goes back. So the ts only goes down in the collection's natural order by
+ * as much as one insert can overtake another on the way to the server, not by
+ * the linger. Give the readers a max skew to cover that (see TailingConsumer).
+ *
+ * Producer.next hands out a reusable document, so a producer allocates no
+ * documents once its pool is warm. The driver sets a new _id on each insert.
+ *
+ * If a background flush fails, the batch is dropped and the error is thrown
+ * from the producer's next write or flush.
+ */
+public final class CappedWriter {
+
+    /**
+     * @param pCollection The capped collection.
+     * @param pWriteConcern The write concern of each insert.
+     * @param pBatchSize The max number of documents in one insert.
+     * @param pLinger The max millis a document waits for its batch to fill.
+     */
+    public CappedWriter(final DBCollection pCollection, final WriteConcern pWriteConcern, final int pBatchSize, final long pLinger)
+    { this(pCollection, pWriteConcern, pBatchSize, pLinger, null); }
+
+    /**
+     * @param pTsField The field set to the send time of each batch (null to
+     * leave the documents as they are).
+     */
+    public CappedWriter(final DBCollection pCollection,
+                        final WriteConcern pWriteConcern,
+                        final int pBatchSize,
+                        final long pLinger,
+                        final String pTsField)
+    {
+        _collection = pCollection;
+        _tsField = pTsField;
+        _writeConcern = pWriteConcern;
+        _batchSize = pBatchSize;
+        _linger = pLinger;
+
+        _flusher = new Thread("capped-writer-flusher") {
+            public void run() {
+                while (true) {
+                    try { Thread.sleep(Math.max(1, _linger / 2));
+                    } catch (final InterruptedException ie) { return; }
+
+                    final long now = System.currentTimeMillis();
+                    for (final Producer producer : _producers) producer.flushIfLingered(now);
+                }
+            }
+        };
+        _flusher.setDaemon(true);
+        _flusher.start();
+    }
+
+    /**
+     * A new producer. It must only be written to by one thread.
+     */
+    public Producer producer() {
+        final Producer producer = new Producer();
+        _producers.add(producer);
+        return producer;
+    }
+
+    /**
+     * Stop the background flushes and send what every producer has buffered.
+     */
+    public void close() throws InterruptedException {
+        _flusher.interrupt();
+        _flusher.join();
+        for (final Producer producer : _producers) producer.close();
+    }
+
+    /**
+     * The number of documents inserted.
+     */
+    public long getWritten() { return _written.get(); }
+
+    /**
+     * The number of inserts sent.
+     */
+    public long getInserts() { return _inserts.get(); }
+
+    public final class Producer {
+
+        private Producer() { }
+
+        /**
+         * An empty document to fill in and pass to write. It is reused once it
+         * has been sent, so do not keep it after write.
+         */
+        public synchronized BasicDBObject next() {
+            final PooledDoc doc = _free.poll();
+            if (doc == null) return new PooledDoc();
+            doc.clear();
+            return doc;
+        }
+
+        /**
+         * Buffer the document, and send the batch if it is full.
+         */
+        public synchronized void write(final DBObject pDoc) {
+            throwError();
+
+            if (_batch.isEmpty()) _oldest = System.currentTimeMillis();
+            _batch.add(pDoc);
+            if (_batch.size() >= _batchSize) send();
+        }
+
+        /**
+         * Send what is buffered now.
+         */
+        public synchronized void flush() {
+            throwError();
+            send();
+        }
+
+        /**
+         * Send what is buffered and stop the background flushes of this producer.
+         */
+        public synchronized void close() {
+            _producers.remove(this);
+            flush();
+        }
+
+        private synchronized void flushIfLingered(final long pNow) {
+            if (_batch.isEmpty() || pNow - _oldest < _linger) return;
+
+            try { send();
+            } catch (final RuntimeException re) { _error = re; }
+        }
+
+        private void send() {
+            if (_batch.isEmpty()) return;
+
+            if (_tsField != null) {
+                final long ts = nextTs();
+                for (final DBObject doc : _batch) doc.put(_tsField, ts);
+            }
+
+            try {
+                _collection.insert(_batch, _writeConcern);
+                _written.addAndGet(_batch.size());
+                _inserts.incrementAndGet();
+            } finally {
+                for (final DBObject doc : _batch) {
+                    if (doc instanceof PooledDoc && _free.size() < _batchSize) _free.add((PooledDoc)doc);
+                }
+                _batch.clear();
+            }
+        }
+
+        private void throwError() {
+            final RuntimeException error = _error;
+            if (error == null) return;
+            _error = null;
+            throw error;
+        }
+
+        private final ArrayList<DBObject> _batch = new ArrayList<DBObject>(_batchSize);
+        private final ArrayDeque<PooledDoc> _free = new ArrayDeque<PooledDoc>(_batchSize);
+        private long _oldest;
+        private RuntimeException _error;
+    }
+
+    /**
+     * The current time, or the last ts handed out if the clock went back.
+     */
+    private long nextTs() {
+        final long now = System.currentTimeMillis();
+        while (true) {
+            final long last = _lastTs.get();
+            if (now <= last) return last;
+            if (_lastTs.compareAndSet(last, now)) return now;
+        }
+    }
+
+    /**
+     * A document from a producer's pool.
+     */
+    private static final class PooledDoc extends BasicDBObject {
+        private static final long serialVersionUID = 1L;
+    }
+
+    private final DBCollection _collection;
+    private final String _tsField;
+    private final WriteConcern _writeConcern;
+    private final int _batchSize;
+    private final long _linger;
+    private final Thread _flusher;
+
+    private final CopyOnWriteArrayList<Producer> _producers = new CopyOnWriteArrayList<Producer>();
+    private final AtomicLong _written = new AtomicLong(0);
+    private final AtomicLong _inserts = new AtomicLong(0);
+    private final AtomicLong _lastTs = new AtomicLong(Long.MIN_VALUE);
+}
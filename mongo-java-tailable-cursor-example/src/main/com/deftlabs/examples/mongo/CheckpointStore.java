@@ -0,0 +1,31 @@
+/**
+ * Copyright 2011, Deft Labs.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.deftlabs.examples.mongo;
+
+/**
+ * Where a tailer keeps the ts it has delivered up to, so it can resume there
+ * after a restart. See FileCheckpointStore and MongoCheckpointStore.
+ */
+public interface CheckpointStore {
+
+    /**
+     * The saved ts, or Long.MIN_VALUE if there is none.
+     */
+    public long load() throws Exception;
+
+    public void save(final long pTs) throws Exception;
+}
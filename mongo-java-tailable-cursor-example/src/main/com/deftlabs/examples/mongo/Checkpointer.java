@@ -0,0 +1,106 @@
+/**
+ * Copyright 2011, Deft Labs.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.deftlabs.examples.mongo;
+
+// Java
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Saves a tailer's checkpoint in the background.
+ *
+ * mark only records the latest ts in memory, so it is cheap enough to call
+ * for every batch. A background thread saves the latest ts once per interval
+ * (if it moved), so all of the marks in an interval cost one write. A longer
+ * interval means less checkpoint I/O and more to replay after a crash.
+ */
+public final class Checkpointer {
+
+    /**
+     * @param pStore Where the checkpoint is kept.
+     * @param pInterval The millis between saves.
+     */
+    public Checkpointer(final CheckpointStore pStore, final long pInterval) {
+        _store = pStore;
+        _interval = pInterval;
+    }
+
+    /**
+     * The saved checkpoint (Long.MIN_VALUE if there is none). Call before start.
+     */
+    public long load() throws Exception {
+        final long ts = _store.load();
+        _latest.set(ts);
+        _saved = ts;
+        return ts;
+    }
+
+    public synchronized void start() {
+        if (_thread != null) return;
+
+        _thread = new Thread("checkpointer") {
+            public void run() {
+                while (true) {
+                    try { Thread.sleep(_interval);
+                    } catch (final InterruptedException ie) { return; }
+
+                    try { save();
+                    } catch (final Throwable t) { t.printStackTrace(); } // Try again next interval.
+                }
+            }
+        };
+        _thread.setDaemon(true);
+        _thread.start();
+    }
+
+    /**
+     * Everything up to and including this ts has been delivered.
+     */
+    public void mark(final long pTs) { _latest.set(pTs); }
+
+    /**
+     * Stop the background thread and save the latest ts.
+     */
+    public void close() throws Exception {
+        final Thread thread;
+        synchronized(this) { thread = _thread; _thread = null; }
+
+        if (thread != null) { thread.interrupt(); thread.join(); }
+
+        save();
+    }
+
+    /**
+     * The number of times the checkpoint was written.
+     */
+    public long getSaves() { return _saves.get(); }
+
+    private synchronized void save() throws Exception {
+        final long ts = _latest.get();
+        if (ts == _saved) return;
+
+        _store.save(ts);
+        _saved = ts;
+        _saves.incrementAndGet();
+    }
+
+    private final CheckpointStore _store;
+    private final long _interval;
+    private final AtomicLong _latest = new AtomicLong(Long.MIN_VALUE);
+    private final AtomicLong _saves = new AtomicLong(0);
+    private long _saved = Long.MIN_VALUE;
+    private Thread _thread;
+}
@@ -0,0 +1,390 @@
+/**
+ * Copyright 2011, Deft Labs.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.deftlabs.examples.mongo;
+
+// Mongo
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import org.bson.BSON;
+
+// Java
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * One tailable cursor shared by any number of in-process subscribers.
+ *
+ * The documents from a TailingConsumer are published into a ring buffer (in
+ * the style of a disruptor). Each subscriber reads from the ring at its own
+ * position. Nothing is locked on the way through the ring: the tailer is the
+ * only writer, each subscriber only moves its own position, and each slot
+ * holds the sequence number of the document in it, so a subscriber can tell
+ * if its document was overwritten.
+ *
+ * What happens when a subscriber falls a full ring behind is up to its policy:
+ *
+ * DROP - the tailer does not wait. The subscriber skips ahead to the oldest
+ * document still in the ring and the skipped ones are counted as dropped.
+ * BLOCK - the tailer waits for the subscriber, which in turn holds up every
+ * other subscriber and (through the consumer's queue) the cursor. Closing the
+ * subscriber, or stopping the tailer, releases it.
+ * SPILL - the tailer does not wait. Documents the subscriber has not read are
+ * written to a local file before their slot is reused, and the subscriber
+ * reads them from there. Nothing is lost and memory stays bounded.
+ *
+ * The consumer's batches are acked (which moves its checkpoint, if it has one)
+ * only once every subscriber has read them, so after a restart nothing a
+ * subscriber had not read is skipped. A document counts as read once the
+ * subscriber asks for the next one. A DROP subscriber does not hold the
+ * checkpoint back past what it would drop anyway. This is checked each time
+ * a batch is published, when a subscriber has caught up and waits, and on
+ * stop.
+ *
+ * Waiting (a subscriber in take, or the tailer for a BLOCK subscriber) is
+ * done on a monitor. The other side only takes it to notify when it sees that
+ * someone is waiting, so nothing is locked while nobody waits.
+ *
+ * A subscriber must only be read by one thread.
+ */
+public final class FanOutTailer {
+
+    public enum Policy { DROP, BLOCK, SPILL }
+
+    /**
+     * @param pConsumer The consumer to take the documents from (not started).
+     * @param pRingSize The number of documents in the ring (rounded up to a power of two).
+     */
+    public FanOutTailer(final TailingConsumer pConsumer, final int pRingSize) {
+        _consumer = pConsumer;
+
+        int size = 2;
+        while (size < pRingSize) size <<= 1;
+        _ring = new AtomicReferenceArray<Entry>(size);
+        _capacity = size;
+        _mask = size - 1;
+    }
+
+    public void start() {
+        _consumer.start(new TailingConsumer.Handler() {
+            public void handle(final List<DBObject> pBatch) {
+                for (final DBObject doc : pBatch) publish(doc);
+
+                // Only the resume ts is needed to ack the batch later.
+                synchronized(_unread) { _unread.add(new UnreadBatch(_published.get(), _consumer.getResumeTs(pBatch))); }
+                ackRead();
+            }
+        }, false);
+    }
+
+    /**
+     * Stop the consumer and close the subscribers. A publish waiting on a BLOCK
+     * subscriber is released first (so the consumer can stop), and the rest
+     * of the queued documents are published without waiting.
+     */
+    public void stop() throws InterruptedException {
+        ackRead();
+
+        _stopped = true;
+        signalAll();
+
+        _consumer.stop();
+        for (final Subscriber subscriber : _subscribers) subscriber.close();
+    }
+
+    /**
+     * Add a subscriber. It sees the documents published from now on.
+     */
+    public Subscriber subscribe(final Policy pPolicy) throws IOException {
+        final Subscriber subscriber = new Subscriber(pPolicy, _published.get() + 1);
+        _subscribers.add(subscriber);
+        return subscriber;
+    }
+
+    /**
+     * The number of documents published.
+     */
+    public long getPublished() { return _published.get() + 1; }
+
+    /**
+     * Called only by the consumer's dispatch thread.
+     */
+    private void publish(final DBObject pDoc) {
+        final long seq = _published.get() + 1;
+        final int slot = (int)(seq & _mask);
+        final Entry old = _ring.get(slot);
+
+        if (old != null) {
+            for (final Subscriber subscriber : _subscribers) {
+                if (subscriber._closed) continue;
+
+                switch (subscriber._policy) {
+                    case BLOCK:
+                        if (subscriber._next.get() <= old.seq) awaitSubscriber(subscriber, old.seq);
+                        break;
+                    case SPILL:
+                        if (subscriber._next.get() <= old.seq) subscriber._spill.append(old);
+                        break;
+                    default: break;
+                }
+            }
+        }
+
+        _ring.set(slot, new Entry(seq, pDoc));
+        _published.set(seq);
+
+        if (_waitingTakers.get() > 0) signalAll();
+    }
+
+    /**
+     * Ack the published batches that every subscriber has read.
+     */
+    private void ackRead() {
+        synchronized(_unread) {
+            final long published = _published.get();
+            long read = published;
+
+            for (final Subscriber subscriber : _subscribers) {
+                if (subscriber._closed) continue;
+                long subscriberRead = subscriber._read;
+                if (subscriber._policy == Policy.DROP) subscriberRead = Math.max(subscriberRead, published - _capacity);
+                read = Math.min(read, subscriberRead);
+            }
+
+            while (!_unread.isEmpty() && _unread.peek().seq <= read)
+            { _consumer.ack(_unread.poll().resumeTs); }
+        }
+    }
+
+    /**
+     * Wait until the subscriber has read past the sequence (or it is closed or
+     * we are stopping). The flag is set before the check under the monitor, and
+     * a subscriber notifies after it moves on if it sees the flag, so a wake up
+     * can not be missed.
+     */
+    private void awaitSubscriber(final Subscriber pSubscriber, final long pSeq) {
+        _publisherWaiting = true;
+        try {
+            synchronized(_monitor) {
+                while (pSubscriber._next.get() <= pSeq && !pSubscriber._closed && !_stopped) _monitor.wait();
+            }
+        } catch (final InterruptedException ie) { Thread.currentThread().interrupt();
+        } finally { _publisherWaiting = false; }
+    }
+
+    private void signalAll() { synchronized(_monitor) { _monitor.notifyAll(); } }
+
+    /**
+     * A reader of the ring with its own position.
+     */
+    public final class Subscriber {
+
+        private Subscriber(final Policy pPolicy, final long pNext) throws IOException {
+            _policy = pPolicy;
+            _next.set(pNext);
+            _read = pNext - 1;
+            _spill = (pPolicy == Policy.SPILL) ? new Spill() : null;
+        }
+
+        /**
+         * The next document, or null if there is none yet.
+         */
+        public DBObject poll() {
+            // Asking for the next one means the last one has been read.
+            _read = _next.get() - 1;
+
+            while (true) {
+                final long seq = _next.get();
+                if (seq > _published.get()) return null;
+
+                final Entry entry = _ring.get((int)(seq & _mask));
+
+                if (entry.seq == seq) { advance(seq + 1); return entry.doc; }
+
+                // The slot was reused before we got to it.
+                if (_policy == Policy.SPILL) {
+                    final DBObject doc = _spill.read(seq);
+                    advance(seq + 1);
+                    return doc;
+                }
+
+                final long oldest = _published.get() - _capacity + 1;
+                _dropped.addAndGet(oldest - seq);
+                advance(oldest);
+            }
+        }
+
+        /**
+         * The next document, waiting for one if need be. Returns null once the
+         * subscriber is closed.
+         */
+        public DBObject take() throws InterruptedException {
+            while (true) {
+                final DBObject doc = poll();
+                if (doc != null || _closed) return doc;
+
+                // Caught up - a good time to move the checkpoint.
+                ackRead();
+
+                // Counted before the check under the monitor, so the publish
+                // that makes a document available sees us and notifies.
+                _waitingTakers.incrementAndGet();
+                try {
+                    synchronized(_monitor) {
+                        while (_next.get() > _published.get() && !_closed) _monitor.wait();
+                    }
+                } finally { _waitingTakers.decrementAndGet(); }
+            }
+        }
+
+        /**
+         * Stop reading. The tailer no longer waits for (or spills for) this
+         * subscriber, and a take waiting on it returns null.
+         */
+        public void close() {
+            _closed = true;
+            _subscribers.remove(this);
+            signalAll();
+            if (_spill != null) _spill.close();
+        }
+
+        private void advance(final long pNext) {
+            _next.set(pNext);
+            if (_publisherWaiting && _policy == Policy.BLOCK) signalAll();
+        }
+
+        /**
+         * The number of documents skipped because the subscriber fell behind (DROP).
+         */
+        public long getDropped() { return _dropped.get(); }
+
+        /**
+         * The number of documents written to the spill file (SPILL).
+         */
+        public long getSpilled() { return (_spill == null) ? 0 : _spill._spilled.get(); }
+
+        private final Policy _policy;
+        private final AtomicLong _next = new AtomicLong();
+        private final AtomicLong _dropped = new AtomicLong(0);
+        private final Spill _spill;
+
+        // The last sequence read, for the checkpoint.
+        private volatile long _read;
+        private volatile boolean _closed;
+    }
+
+    /**
+     * The documents a SPILL subscriber has not read when their slot is
+     * reused, in sequence order. Each record is [long seq][bson]. The file
+     * is emptied whenever the subscriber catches up with it.
+     */
+    private static final class Spill {
+        private Spill() throws IOException {
+            _file = File.createTempFile("fan-out-spill", ".bson");
+            _file.deleteOnExit();
+            _raf = new RandomAccessFile(_file, "rw");
+        }
+
+        private synchronized void append(final Entry pEntry) {
+            try {
+                _raf.seek(_writePos);
+                _raf.writeLong(pEntry.seq);
+                _raf.write(BSON.encode(pEntry.doc));
+                _writePos = _raf.getFilePointer();
+                _spilled.incrementAndGet();
+            } catch (final IOException ioe) { throw new IllegalStateException(ioe); }
+        }
+
+        /**
+         * Read the document with the sequence. Records before it (that were
+         * read from the ring after all) are skipped.
+         */
+        private synchronized DBObject read(final long pSeq) {
+            try {
+                while (_readPos < _writePos) {
+                    _raf.seek(_readPos);
+                    final long seq = _raf.readLong();
+                    final byte [] bytes = new byte[Integer.reverseBytes(_raf.readInt())];
+                    _raf.seek(_readPos + 8);
+                    _raf.readFully(bytes);
+                    _readPos += 8 + bytes.length;
+
+                    if (_readPos == _writePos) { _readPos = 0; _writePos = 0; _raf.setLength(0); }
+
+                    if (seq < pSeq) continue;
+                    if (seq > pSeq) break;
+
+                    final BasicDBObject doc = new BasicDBObject();
+                    doc.putAll(BSON.decode(bytes));
+                    return doc;
+                }
+            } catch (final IOException ioe) { throw new IllegalStateException(ioe); }
+
+            throw new IllegalStateException("document not spilled: " + pSeq);
+        }
+
+        private synchronized void close() {
+            try { _raf.close(); } catch (final IOException ioe) { }
+            _file.delete();
+        }
+
+        private final File _file;
+        private final RandomAccessFile _raf;
+        private long _writePos;
+        private long _readPos;
+        private final AtomicLong _spilled = new AtomicLong(0);
+    }
+
+    private static final class Entry {
+        private Entry(final long pSeq, final DBObject pDoc) { seq = pSeq; doc = pDoc; }
+
+        private final long seq;
+        private final DBObject doc;
+    }
+
+    private static final class UnreadBatch {
+        private UnreadBatch(final long pSeq, final long pResumeTs) { seq = pSeq; resumeTs = pResumeTs; }
+
+        private final long seq;
+        private final long resumeTs;
+    }
+
+    private final TailingConsumer _consumer;
+    private final AtomicReferenceArray<Entry> _ring;
+    private final int _capacity;
+    private final int _mask;
+
+    // The sequence of the last document published (-1 for none).
+    private final AtomicLong _published = new AtomicLong(-1);
+
+    private final CopyOnWriteArrayList<Subscriber> _subscribers = new CopyOnWriteArrayList<Subscriber>();
+
+    // The sequence of the last document and the resume ts of each batch not acked yet.
+    private final ArrayDeque<UnreadBatch> _unread = new ArrayDeque<UnreadBatch>();
+
+    // Where takers and a publisher blocked on a subscriber wait.
+    private final Object _monitor = new Object();
+    private final AtomicInteger _waitingTakers = new AtomicInteger(0);
+    private volatile boolean _publisherWaiting;
+    private volatile boolean _stopped;
+}
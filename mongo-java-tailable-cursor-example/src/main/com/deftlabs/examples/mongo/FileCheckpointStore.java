@@ -0,0 +1,59 @@
+/**
+ * Copyright 2011, Deft Labs.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.deftlabs.examples.mongo;
+
+// Java
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+
+/**
+ * Keeps the checkpoint in a local file. The new value is written and synced
+ * to a temp file that is then renamed over the old one, so a crash leaves
+ * either the old or the new checkpoint, never a torn one.
+ */
+public final class FileCheckpointStore implements CheckpointStore {
+
+    public FileCheckpointStore(final File pFile) {
+        _file = pFile;
+        _tmpFile = new File(pFile.getPath() + ".tmp");
+    }
+
+    public long load() throws IOException {
+        if (!_file.exists()) return Long.MIN_VALUE;
+
+        final BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(_file), "UTF-8"));
+        try { return Long.parseLong(reader.readLine().trim());
+        } finally { reader.close(); }
+    }
+
+    public void save(final long pTs) throws IOException {
+        final FileOutputStream out = new FileOutputStream(_tmpFile);
+        try {
+            out.write((Long.toString(pTs) + "\n").getBytes("UTF-8"));
+            out.getFD().sync();
+        } finally { out.close(); }
+
+        if (!_tmpFile.renameTo(_file)) throw new IOException("unable to rename: " + _tmpFile + " to: " + _file);
+    }
+
+    private final File _file;
+    private final File _tmpFile;
+}
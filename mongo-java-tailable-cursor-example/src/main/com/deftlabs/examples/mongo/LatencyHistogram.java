@@ -0,0 +1,97 @@
+/**
+ * Copyright 2011, Deft Labs.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.deftlabs.examples.mongo;
+
+/**
+ * A latency histogram in the style of HdrHistogram: fixed memory, constant
+ * time to record, and a bounded relative error at any magnitude.
+ *
+ * Values below 128 get a bucket each. Above that, each power of two is split
+ * into 64 buckets, so a value is reported within 1/64 (under 2%) of what was
+ * recorded, from microseconds up to hours, in under 4k buckets.
+ *
+ * This is not thread safe. Record into one per thread and add them up.
+ */
+public final class LatencyHistogram {
+
+    public void record(final long pValue) {
+        final long value = (pValue < 0) ? 0 : pValue;
+        _counts[index(value)]++;
+        _count++;
+        _sum += value;
+        if (value > _max) _max = value;
+    }
+
+    /**
+     * Add the other histogram's values to this one.
+     */
+    public void add(final LatencyHistogram pOther) {
+        for (int idx=0; idx < _counts.length; idx++) _counts[idx] += pOther._counts[idx];
+        _count += pOther._count;
+        _sum += pOther._sum;
+        if (pOther._max > _max) _max = pOther._max;
+    }
+
+    public long getCount() { return _count; }
+
+    public long getMax() { return _max; }
+
+    public double getMean() { return (_count == 0) ? 0 : (double)_sum / _count; }
+
+    /**
+     * The value at the percentile (0 - 100), as the top of its bucket (so it is
+     * never under the real value).
+     */
+    public long getPercentile(final double pPercentile) {
+        if (_count == 0) return 0;
+
+        final long rank = Math.max(1, (long)Math.ceil(_count * pPercentile / 100));
+        long seen = 0;
+        for (int idx=0; idx < _counts.length; idx++) {
+            seen += _counts[idx];
+            if (seen >= rank) return Math.min(highest(idx), _max);
+        }
+        return _max;
+    }
+
+    private static int index(final long pValue) {
+        if (pValue < SUB_BUCKETS) return (int)pValue;
+
+        final int shift = (64 - Long.numberOfLeadingZeros(pValue)) - SUB_BUCKET_BITS;
+        return SUB_BUCKETS + ((shift - 1) * HALF) + (int)((pValue >>> shift) - HALF);
+    }
+
+    /**
+     * The highest value that goes in the bucket.
+     */
+    private static long highest(final int pIndex) {
+        if (pIndex < SUB_BUCKETS) return pIndex;
+
+        final int shift = ((pIndex - SUB_BUCKETS) / HALF) + 1;
+        final long top = ((pIndex - SUB_BUCKETS) % HALF) + HALF;
+        return ((top + 1) << shift) - 1;
+    }
+
+    private static final int SUB_BUCKET_BITS = 7;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int HALF = SUB_BUCKETS / 2;
+
+    private final long [] _counts = new long[SUB_BUCKETS + ((64 - SUB_BUCKET_BITS) * HALF)];
+    private long _count;
+    private long _sum;
+    private long _max;
+}
@@ -0,0 +1,53 @@
+/**
+ * Copyright 2011, Deft Labs.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.deftlabs.examples.mongo;
+
+// Mongo
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.WriteConcern;
+
+// Java
+import java.util.Date;
+
+/**
+ * Keeps the checkpoint in a Mongo collection, one document per tailer name:
+ * { _id: name, ts: ts, updated: date }.
+ */
+public final class MongoCheckpointStore implements CheckpointStore {
+
+    public MongoCheckpointStore(final DBCollection pCollection, final String pName) {
+        _collection = pCollection;
+        _name = pName;
+    }
+
+    public long load() {
+        final DBObject doc = _collection.findOne(new BasicDBObject("_id", _name));
+        if (doc == null || !(doc.get("ts") instanceof Number)) return Long.MIN_VALUE;
+        return ((Number)doc.get("ts")).longValue();
+    }
+
+    public void save(final long pTs) {
+        final BasicDBObject toSet = new BasicDBObject("ts", pTs);
+        toSet.put("updated", new Date());
+        _collection.update(new BasicDBObject("_id", _name), new BasicDBObject("$set", toSet), true, false, WriteConcern.SAFE);
+    }
+
+    private final DBCollection _collection;
+    private final String _name;
+}
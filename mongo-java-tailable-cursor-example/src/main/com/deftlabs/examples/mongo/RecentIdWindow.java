@@ -0,0 +1,196 @@
+/**
+ * Copyright 2011, Deft Labs.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.deftlabs.examples.mongo;
+
+// Mongo
+import org.bson.types.ObjectId;
+
+// Java
+import java.util.Arrays;
+
+/**
+ * Duplicate detection for a tailable reader in constant memory.
+ *
+ * A capped collection is read in ascending ts order, so only the most recent
+ * ids can ever come back (when a cursor is reopened at the last ts). The
+ * window keeps the last capacity ids in a ring of primitive arrays, with an
+ * open addressing index into the ring for lookups. When the ring is full the
+ * oldest id is dropped.
+ *
+ * An id with a ts newer than any seen is new without a lookup. An id that is
+ * not in the window is too old to tell if its ts is at or below the newest ts
+ * dropped from the window. It is treated as seen if it is also more than the
+ * max skew below the newest ts seen, since a new document can not be that far
+ * behind (see TailingConsumer); otherwise it is treated as new, so at worst
+ * it is delivered twice. So the capacity must be larger than the number of
+ * documents written in the max skew (or that can share one ts).
+ *
+ * This is not thread safe.
+ */
+public final class RecentIdWindow {
+
+    public RecentIdWindow(final int pCapacity) { this(pCapacity, 0); }
+
+    /**
+     * @param pMaxSkew How far (in ts) a new document can be below the newest
+     * one seen before it.
+     */
+    public RecentIdWindow(final int pCapacity, final long pMaxSkew) {
+        _capacity = pCapacity;
+        _maxSkew = pMaxSkew;
+        _times = new int[pCapacity];
+        _machines = new int[pCapacity];
+        _incs = new int[pCapacity];
+        _ts = new long[pCapacity];
+
+        // Keep the index at most half full.
+        int tableSize = 2;
+        while (tableSize < pCapacity * 2) tableSize <<= 1;
+        _index = new int[tableSize];
+        _mask = tableSize - 1;
+    }
+
+    /**
+     * Remember the id. Returns true if it is new, false if it was seen (or is
+     * too old to tell).
+     */
+    public boolean add(final long pTs, final ObjectId pId) {
+        if (_size > 0 && pTs <= _maxTs) {
+            if (find(pId) >= 0) return false;
+            if (_dropped && pTs <= _droppedTs && pTs < _maxTs - _maxSkew) return false;
+        }
+
+        if (_size == _capacity) drop();
+
+        final int pos = _head;
+        _head = (_head + 1) % _capacity;
+        _size++;
+
+        _times[pos] = pId._time();
+        _machines[pos] = pId._machine();
+        _incs[pos] = pId._inc();
+        _ts[pos] = pTs;
+
+        int slot = hash(_times[pos], _machines[pos], _incs[pos]) & _mask;
+        while (_index[slot] != 0) slot = (slot + 1) & _mask;
+        _index[slot] = pos + 1;
+
+        if (pTs > _maxTs) _maxTs = pTs;
+        return true;
+    }
+
+    /**
+     * True if the id is in the window.
+     */
+    public boolean contains(final ObjectId pId) { return find(pId) >= 0; }
+
+    public int size() { return _size; }
+
+    public void clear() {
+        Arrays.fill(_index, 0);
+        _head = 0;
+        _size = 0;
+        _maxTs = Long.MIN_VALUE;
+        _dropped = false;
+    }
+
+    /**
+     * The index slot that points at the id, or -1.
+     */
+    private int find(final ObjectId pId) {
+        final int time = pId._time();
+        final int machine = pId._machine();
+        final int inc = pId._inc();
+
+        int slot = hash(time, machine, inc) & _mask;
+        while (_index[slot] != 0) {
+            final int pos = _index[slot] - 1;
+            if (_incs[pos] == inc && _times[pos] == time && _machines[pos] == machine) return slot;
+            slot = (slot + 1) & _mask;
+        }
+        return -1;
+    }
+
+    /**
+     * Drop the oldest id from the ring and the index.
+     */
+    private void drop() {
+        final int pos = (_head - _size + _capacity) % _capacity;
+
+        if (!_dropped || _ts[pos] > _droppedTs) _droppedTs = _ts[pos];
+        _dropped = true;
+
+        int slot = hash(_times[pos], _machines[pos], _incs[pos]) & _mask;
+        while (_index[slot] != pos + 1) slot = (slot + 1) & _mask;
+        remove(slot);
+
+        _size--;
+    }
+
+    /**
+     * Clear the index slot and shift back any entries in the same probe run
+     * so lookups never hit a hole.
+     */
+    private void remove(final int pSlot) {
+        int hole = pSlot;
+        int next = pSlot;
+        while (true) {
+            next = (next + 1) & _mask;
+            if (_index[next] == 0) break;
+
+            final int pos = _index[next] - 1;
+            final int home = hash(_times[pos], _machines[pos], _incs[pos]) & _mask;
+
+            // Only move the entry if its home is not between the hole and its current slot.
+            if (hole <= next ? (hole < home && home <= next) : (hole < home || home <= next)) continue;
+
+            _index[hole] = _index[next];
+            hole = next;
+        }
+
+        _index[hole] = 0;
+    }
+
+    private static int hash(final int pTime, final int pMachine, final int pInc) {
+        int h = pInc;
+        h = (h * 31) + pMachine;
+        h = (h * 31) + pTime;
+        // Spread the high bits down since the table size is a power of two.
+        return h ^ (h >>> 16);
+    }
+
+    private final int _capacity;
+    private final long _maxSkew;
+
+    // The ring, oldest at head - size.
+    private final int [] _times;
+    private final int [] _machines;
+    private final int [] _incs;
+    private final long [] _ts;
+    private int _head;
+    private int _size;
+
+    // Ring position + 1 (0 is empty).
+    private final int [] _index;
+    private final int _mask;
+
+    private long _maxTs = Long.MIN_VALUE;
+    private boolean _dropped;
+
+    // The newest ts dropped so far.
+    private long _droppedTs;
+}
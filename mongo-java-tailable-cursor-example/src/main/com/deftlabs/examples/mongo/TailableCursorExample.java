@@ -19,17 +19,15 @@ package com.deftlabs.examples.mongo;
 // Mongo
 import com.mongodb.Mongo;
 import com.mongodb.MongoURI;
-import com.mongodb.Bytes;
-import com.mongodb.DBCollection;
 import com.mongodb.BasicDBObject;
-import com.mongodb.DBCursor;
-import org.bson.BasicBSONObject;
+import com.mongodb.DBObject;
+import com.mongodb.WriteConcern;
 import org.bson.types.ObjectId;
 
 // Java
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
-import java.util.HashSet;
 import java.util.ArrayList;
 
 /**
@@ -47,7 +45,8 @@ public final class TailableCursorExample {
         conf.put("size",  20971520); // 20 MB
         mongo.getDB("testTailableCursor").createCollection("test", conf);
 
-        final AtomicBoolean readRunning = new AtomicBoolean(true);
+        checkStopWhenIdle(mongo);
+
         final AtomicBoolean writeRunning = new AtomicBoolean(true);
 
         final AtomicLong writeCounter = new AtomicLong(0);
@@ -56,21 +55,38 @@ public final class TailableCursorExample {
         final ArrayList<Thread> writeThreads = new ArrayList<Thread>();
         final ArrayList<Thread> readThreads = new ArrayList<Thread>();
 
+        final CappedWriter cappedWriter
+        = new CappedWriter(mongo.getDB("testTailableCursor").getCollection("test"), WriteConcern.NORMAL, WRITE_BATCH_SIZE, WRITE_LINGER, "ts");
+
+        // The checkpoint is the ts every reader has read up to (see FanOutTailer).
+        // It is kept out of testTailableCursor, which is dropped above, so it
+        // outlives the run. A run starts after the last one's checkpoint, which
+        // here (with the collection recreated) is before any new document.
+        final Checkpointer checkpointer
+        = new Checkpointer(new MongoCheckpointStore(mongo.getDB("testTailableCursorCheckpoints").getCollection("checkpoints"), "example"), CHECKPOINT_INTERVAL);
+
+        // One cursor for all of the readers.
+        final FanOutTailer tailer
+        = new FanOutTailer(new TailingConsumer(mongo.getDB("testTailableCursor").getCollection("test"), "ts", READ_BATCH_SIZE, MAX_QUEUED_BATCHES, true, IDLE_DELAY, ID_WINDOW_SIZE, MAX_SKEW, checkpointer), RING_SIZE);
+
         for (int idx=0; idx < 10; idx++) {
-            final Thread writeThread = new Thread(new Writer(mongo, writeRunning, writeCounter));
-            final Thread readThread = new Thread(new Reader(mongo, readRunning, readCounter));
+            final Thread writeThread = new Thread(new Writer(cappedWriter.producer(), writeRunning, writeCounter));
+            final Thread readThread = new Thread(new Reader(tailer.subscribe(FanOutTailer.Policy.BLOCK), readCounter));
             writeThread.start();
             readThread.start();
             writeThreads.add(writeThread);
             readThreads.add(readThread);
         }
 
+        tailer.start();
+
         // Run for five minutes
         //Thread.sleep(300000);
         Thread.sleep(20000);
         writeRunning.set(false);
         Thread.sleep(5000);
-        readRunning.set(false);
+        cappedWriter.close();
+        tailer.stop();
         Thread.sleep(5000);
 
         for (final Thread readThread : readThreads) readThread.interrupt();
@@ -78,80 +94,103 @@ public final class TailableCursorExample {
 
         System.out.println("----- write count: " + writeCounter.get());
         System.out.println("----- read count: " + readCounter.get());
+        System.out.println("----- checkpoint saves: " + checkpointer.getSaves());
     }
 
     /**
-     * The thread that is reading from the capped collection.
+     * A consumer that has read to the end of a collection sits in hasNext
+     * waiting for data. Make sure stop still gets it out of there.
      */
-    private static class Reader implements Runnable {
-        @Override
-        public void run() {
-            final HashSet<ObjectId> seenIds = new HashSet<ObjectId>();
-            long lastTimestamp = 0;
+    private static void checkStopWhenIdle(final Mongo pMongo) throws Exception {
+        final BasicDBObject conf = new BasicDBObject("capped", true);
+        conf.put("size", 1048576);
+        pMongo.getDB("testTailableCursor").createCollection("idle", conf);
 
-            while (_running.get()) {
-                try {
-                    _mongo.getDB("testTailableCursor").requestStart();
-                    final DBCursor cur = createCursor(lastTimestamp);
-                    try {
-                        while (cur.hasNext() && _running.get()) {
-                            final BasicDBObject doc = (BasicDBObject)cur.next();
-                            final ObjectId docId = doc.getObjectId("_id");
-                            lastTimestamp = doc.getLong("ts");
-                            if (seenIds.contains(docId)) System.out.println("------ duplicate id found: " + docId);
-                            seenIds.add(docId);
-                            _counter.incrementAndGet();
-                        }
-                    } finally {
-                        try { if (cur != null) cur.close(); } catch (final Throwable t) { /* nada */ }
-                        _mongo.getDB("testTailableCursor").requestDone();
-                    }
-
-                    try { Thread.sleep(100); } catch (final InterruptedException ie) { break; }
-                } catch (final Throwable t) { t.printStackTrace(); }
-            }
-        }
+        // One document, so the cursor stays alive once it has been read.
+        final BasicDBObject doc = new BasicDBObject("_id", ObjectId.get());
+        doc.put("ts", System.currentTimeMillis());
+        pMongo.getDB("testTailableCursor").getCollection("idle").insert(doc, WriteConcern.SAFE);
+
+        final TailingConsumer consumer
+        = new TailingConsumer(pMongo.getDB("testTailableCursor").getCollection("idle"), "ts", READ_BATCH_SIZE, MAX_QUEUED_BATCHES, true, IDLE_DELAY, ID_WINDOW_SIZE);
 
-        private DBCursor createCursor(final long pLast) {
-            final DBCollection col = _mongo.getDB("testTailableCursor").getCollection("test");
+        consumer.start();
+        if (consumer.poll(STOP_TIMEOUT, TimeUnit.MILLISECONDS) == null) throw new IllegalStateException("idle consumer did not read the document");
 
-            if (pLast == 0)
-            { return col.find().sort(new BasicDBObject("$natural", 1)).addOption(Bytes.QUERYOPTION_TAILABLE).addOption(Bytes.QUERYOPTION_AWAITDATA); }
+        final Thread stopper = new Thread(new Runnable() {
+            public void run() {
+                try { consumer.stop(); } catch (final InterruptedException ie) { /* done */ }
+            }
+        });
+        stopper.setDaemon(true);
+        stopper.start();
+        stopper.join(STOP_TIMEOUT);
+
+        if (stopper.isAlive()) throw new IllegalStateException("idle consumer did not stop within " + STOP_TIMEOUT + " ms");
+        System.out.println("----- idle consumer stopped");
+    }
 
-            final BasicDBObject query = new BasicDBObject("ts", new BasicDBObject("$gt", pLast));
-            return col.find(query).sort(new BasicDBObject("$natural", 1)).addOption(Bytes.QUERYOPTION_TAILABLE).addOption(Bytes.QUERYOPTION_AWAITDATA);
+    /**
+     * The thread that is reading from the capped collection (through its subscriber).
+     */
+    private static class Reader implements Runnable {
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    final DBObject doc = _subscriber.take();
+                    if (doc == null) return; // Closed.
+                    final ObjectId docId = (ObjectId)doc.get("_id");
+                    if (!_seenIds.add(((Number)doc.get("ts")).longValue(), docId)) System.out.println("------ duplicate id found: " + docId);
+                    _counter.incrementAndGet();
+                }
+            } catch (final InterruptedException ie) { /* done */ }
         }
 
-        private Reader(final Mongo pMongo, final AtomicBoolean pRunning, final AtomicLong pCounter)
-        { _mongo = pMongo; _running = pRunning; _counter = pCounter; }
+        private Reader(final FanOutTailer.Subscriber pSubscriber, final AtomicLong pCounter)
+        { _subscriber = pSubscriber; _counter = pCounter; }
 
-        private final Mongo _mongo;
-        private final AtomicBoolean _running;
+        private final FanOutTailer.Subscriber _subscriber;
+        private final RecentIdWindow _seenIds = new RecentIdWindow(ID_WINDOW_SIZE, MAX_SKEW);
         private final AtomicLong _counter;
     }
 
     /**
-     * The thread that is writing to the capped collection.
+     * The thread that is writing to the capped collection. The ts is set by
+     * the capped writer when the batch is sent.
      */
     private static class Writer implements Runnable {
         @Override
         public void run() {
             while (_running.get()) {
-                final ObjectId docId = ObjectId.get();
-                final BasicDBObject doc = new BasicDBObject("_id", docId);
-                final long count = _counter.incrementAndGet();
-                doc.put("count", count);
-                doc.put("ts", System.currentTimeMillis());
-                _mongo.getDB("testTailableCursor").getCollection("test").insert(doc);
+                final BasicDBObject doc = _producer.next();
+                doc.put("_id", ObjectId.get());
+                doc.put("count", _counter.incrementAndGet());
+                _producer.write(doc);
             }
+            _producer.close();
         }
 
-        private Writer(final Mongo pMongo, final AtomicBoolean pRunning, final AtomicLong pCounter)
-        { _mongo = pMongo; _running = pRunning; _counter = pCounter; }
+        private Writer(final CappedWriter.Producer pProducer, final AtomicBoolean pRunning, final AtomicLong pCounter)
+        { _producer = pProducer; _running = pRunning; _counter = pCounter; }
 
-        private final Mongo _mongo;
+        private final CappedWriter.Producer _producer;
         private final AtomicBoolean _running;
         private final AtomicLong _counter;
     }
-}
 
+    private static final int READ_BATCH_SIZE = 100;
+    private static final int MAX_QUEUED_BATCHES = 10;
+    private static final long IDLE_DELAY = 100;
+    private static final int RING_SIZE = 4096;
+    private static final int WRITE_BATCH_SIZE = 100;
+    private static final long WRITE_LINGER = 5;
+    private static final long CHECKPOINT_INTERVAL = 1000;
+    private static final long STOP_TIMEOUT = 10000;
+
+    // How far one writer's insert can overtake another's (see CappedWriter).
+    private static final long MAX_SKEW = 50;
+
+    // More than the writes in MAX_SKEW millis.
+    private static final int ID_WINDOW_SIZE = 100000;
+}
@@ -0,0 +1,342 @@
+/**
+ * Copyright 2011, Deft Labs.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.deftlabs.examples.mongo;
+
+// Mongo
+import com.mongodb.BasicDBObject;
+import com.mongodb.DB;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.Mongo;
+import com.mongodb.MongoURI;
+import com.mongodb.WriteConcern;
+import org.bson.types.ObjectId;
+
+// Java
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures how far a capped collection scales as an event bus: writer
+ * throughput, and the lag from a write to each reader receiving it, for every
+ * combination of writer count, reader count, document size, capped collection
+ * size, write concern and write batch size.
+ *
+ * Each reader is a TailingConsumer with its own cursor. The lag of every
+ * document is recorded in a LatencyHistogram per reader, from the nanoTime the
+ * writer put in the document to the handler getting it. The documents a
+ * reader never sees (the collection wrapped past its cursor) are counted as
+ * lost.
+ *
+ * The matrix is set with system properties (comma separated lists):
+ *
+ * bench.writers - 1,4
+ * bench.readers - 1,4
+ * bench.docSizes - 100,1000 (bytes of padding per document)
+ * bench.cappedSizes - 20971520 (bytes)
+ * bench.writeConcerns - NORMAL,SAFE (see WriteConcern.valueOf)
+ * bench.writeBatchSizes - 1,100 (documents per insert, see CappedWriter)
+ * bench.writeLinger - 5 (millis a document waits for its batch to fill)
+ * bench.duration - 10000 (millis of writing per run)
+ * bench.uri - mongodb://127.0.0.1:27017
+ * bench.csv - tailing-bench.csv (where the results are written)
+ *
+ * Run with: ant bench
+ */
+public final class TailingBenchmark {
+
+    public static void main(final String [] pArgs) throws Exception {
+        final String [] writers = list("bench.writers", "1,4");
+        final String [] readers = list("bench.readers", "1,4");
+        final String [] docSizes = list("bench.docSizes", "100,1000");
+        final String [] cappedSizes = list("bench.cappedSizes", "20971520");
+        final String [] writeConcerns = list("bench.writeConcerns", "NORMAL,SAFE");
+        final String [] writeBatchSizes = list("bench.writeBatchSizes", "1,100");
+        final long writeLinger = Long.getLong("bench.writeLinger", 5);
+        final long duration = Long.getLong("bench.duration", 10000);
+        final String csv = System.getProperty("bench.csv", "tailing-bench.csv");
+
+        final Mongo mongo = new Mongo(new MongoURI(System.getProperty("bench.uri", "mongodb://127.0.0.1:27017")));
+
+        final ArrayList<Result> results = new ArrayList<Result>();
+
+        try {
+            for (final String writeConcern : writeConcerns) {
+                for (final String writeBatchSize : writeBatchSizes) {
+                    for (final String cappedSize : cappedSizes) {
+                        for (final String docSize : docSizes) {
+                            for (final String writerCount : writers) {
+                                for (final String readerCount : readers) {
+                                    final Result result = run( mongo,
+                                                               Integer.parseInt(writerCount),
+                                                               Integer.parseInt(readerCount),
+                                                               Integer.parseInt(docSize),
+                                                               Long.parseLong(cappedSize),
+                                                               writeConcern,
+                                                               Integer.parseInt(writeBatchSize),
+                                                               writeLinger,
+                                                               duration);
+                                    System.out.println(result);
+                                    results.add(result);
+                                }
+                            }
+                        }
+                    }
+                }
+            }
+        } finally { mongo.close(); }
+
+        System.out.println();
+        System.out.println(String.format("%-8s %6s %8s %8s %8s %10s %12s %10s %10s %10s %10s %8s",
+                            "concern", "batch", "writers", "readers", "doc", "capped", "writes/sec", "p50 (us)", "p99 (us)", "p999 (us)", "max (us)", "lost"));
+
+        for (final Result result : results) {
+            System.out.println(String.format("%-8s %6d %8d %8d %8d %10d %12.1f %10d %10d %10d %10d %8d",
+                                result._writeConcern,
+                                result._writeBatchSize,
+                                result._writers,
+                                result._readers,
+                                result._docSize,
+                                result._cappedSize,
+                                result.getWriteThroughput(),
+                                result._lag.getPercentile(50),
+                                result._lag.getPercentile(99),
+                                result._lag.getPercentile(99.9),
+                                result._lag.getMax(),
+                                result._lost));
+        }
+
+        final PrintWriter out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(csv), "UTF-8"));
+        try {
+            out.println(Result.CSV_HEADER);
+            for (final Result result : results) out.println(result.toCsv());
+        } finally { out.close(); }
+
+        System.out.println();
+        System.out.println("----- results written to: " + csv);
+    }
+
+    private static Result run(  final Mongo pMongo,
+                                final int pWriters,
+                                final int pReaders,
+                                final int pDocSize,
+                                final long pCappedSize,
+                                final String pWriteConcern,
+                                final int pWriteBatchSize,
+                                final long pWriteLinger,
+                                final long pDuration)
+        throws Exception
+    {
+        final WriteConcern writeConcern = WriteConcern.valueOf(pWriteConcern);
+        if (writeConcern == null) throw new IllegalArgumentException("unknown write concern: " + pWriteConcern);
+
+        final DB db = pMongo.getDB(DB_NAME);
+        db.dropDatabase();
+
+        final BasicDBObject conf = new BasicDBObject("capped", true);
+        conf.put("size", pCappedSize);
+        final DBCollection collection = db.createCollection(COLLECTION_NAME, conf);
+
+        // Start the readers first so they are waiting on the collection.
+        final ArrayList<TailingConsumer> consumers = new ArrayList<TailingConsumer>();
+        final ArrayList<LatencyHistogram> lags = new ArrayList<LatencyHistogram>();
+        final ArrayList<AtomicLong> received = new ArrayList<AtomicLong>();
+
+        for (int idx=0; idx < pReaders; idx++) {
+            final LatencyHistogram lag = new LatencyHistogram();
+            final AtomicLong count = new AtomicLong(0);
+            final TailingConsumer consumer
+            = new TailingConsumer(collection, "ts", READ_BATCH_SIZE, MAX_QUEUED_BATCHES, true, IDLE_DELAY, ID_WINDOW_SIZE, MAX_SKEW, null);
+
+            // The histogram is only touched by the consumer's dispatch thread until it is stopped.
+            consumer.start(new TailingConsumer.Handler() {
+                public void handle(final List<DBObject> pBatch) {
+                    final long now = System.nanoTime();
+                    for (final DBObject doc : pBatch) lag.record((now - ((Number)doc.get("sent")).longValue()) / 1000);
+                    count.addAndGet(pBatch.size());
+                }
+            });
+
+            consumers.add(consumer);
+            lags.add(lag);
+            received.add(count);
+        }
+
+        Thread.sleep(READER_WARMUP);
+
+        final CappedWriter cappedWriter = new CappedWriter(collection, writeConcern, pWriteBatchSize, pWriteLinger, "ts");
+        final AtomicLong errors = new AtomicLong(0);
+        final long deadline = System.currentTimeMillis() + pDuration;
+        final byte [] pad = new byte[pDocSize];
+
+        final ArrayList<Thread> writeThreads = new ArrayList<Thread>();
+        final long start = System.nanoTime();
+
+        for (int idx=0; idx < pWriters; idx++) {
+            final Thread thread = new Thread(new Writer(cappedWriter.producer(), pad, deadline, errors), "bench-writer-" + idx);
+            thread.start();
+            writeThreads.add(thread);
+        }
+
+        for (final Thread thread : writeThreads) thread.join();
+        cappedWriter.close();
+        final long writeNanos = System.nanoTime() - start;
+        final long written = cappedWriter.getWritten();
+
+        // Let the readers catch up, as long as they are still making progress.
+        long lastTotal = -1;
+        long lastProgress = System.currentTimeMillis();
+        while (System.currentTimeMillis() - lastProgress < DRAIN_TIMEOUT) {
+            long total = 0;
+            boolean done = true;
+            for (final AtomicLong count : received) {
+                total += count.get();
+                if (count.get() < written) done = false;
+            }
+            if (done) break;
+            if (total != lastTotal) { lastTotal = total; lastProgress = System.currentTimeMillis(); }
+            Thread.sleep(100);
+        }
+
+        final LatencyHistogram lag = new LatencyHistogram();
+        long lost = 0;
+        long restarts = 0;
+
+        for (int idx=0; idx < pReaders; idx++) {
+            consumers.get(idx).stop();
+            lag.add(lags.get(idx));
+            lost += Math.max(0, written - received.get(idx).get());
+            restarts += consumers.get(idx).getCursorRestarts();
+        }
+
+        return new Result(pWriteConcern, pWriteBatchSize, pWriters, pReaders, pDocSize, pCappedSize, written, errors.get(), writeNanos, lag, lost, restarts);
+    }
+
+    /**
+     * Writes padded documents until the deadline.
+     */
+    private static final class Writer implements Runnable {
+        public void run() {
+            while (System.currentTimeMillis() < _deadline) {
+                final BasicDBObject doc = _producer.next();
+                doc.put("_id", ObjectId.get());
+                doc.put("sent", System.nanoTime());
+                doc.put("pad", _pad);
+
+                try { _producer.write(doc);
+                } catch (final Throwable t) { _errors.incrementAndGet(); }
+            }
+
+            try { _producer.close();
+            } catch (final Throwable t) { _errors.incrementAndGet(); }
+        }
+
+        private Writer(final CappedWriter.Producer pProducer, final byte [] pPad, final long pDeadline, final AtomicLong pErrors)
+        { _producer = pProducer; _pad = pPad; _deadline = pDeadline; _errors = pErrors; }
+
+        private final CappedWriter.Producer _producer;
+        private final byte [] _pad;
+        private final long _deadline;
+        private final AtomicLong _errors;
+    }
+
+    /**
+     * The outcome of one run.
+     */
+    private static final class Result {
+
+        private static final String CSV_HEADER
+        = "writeConcern,writeBatchSize,writers,readers,docSize,cappedSize,written,errors,writesPerSec,"
+        + "lagMeanMicros,lagP50Micros,lagP90Micros,lagP99Micros,lagP999Micros,lagMaxMicros,lost,cursorRestarts";
+
+        private Result( final String pWriteConcern,
+                        final int pWriteBatchSize,
+                        final int pWriters,
+                        final int pReaders,
+                        final int pDocSize,
+                        final long pCappedSize,
+                        final long pWritten,
+                        final long pErrors,
+                        final long pWriteNanos,
+                        final LatencyHistogram pLag,
+                        final long pLost,
+                        final long pRestarts)
+        {
+            _writeConcern = pWriteConcern;
+            _writeBatchSize = pWriteBatchSize;
+            _writers = pWriters;
+            _readers = pReaders;
+            _docSize = pDocSize;
+            _cappedSize = pCappedSize;
+            _written = pWritten;
+            _errors = pErrors;
+            _writeNanos = pWriteNanos;
+            _lag = pLag;
+            _lost = pLost;
+            _restarts = pRestarts;
+        }
+
+        private double getWriteThroughput()
+        { return (_writeNanos == 0) ? 0 : _written / (_writeNanos / 1000000000.0); }
+
+        private String toCsv() {
+            return String.format("%s,%d,%d,%d,%d,%d,%d,%d,%.1f,%.1f,%d,%d,%d,%d,%d,%d,%d",
+                                _writeConcern, _writeBatchSize, _writers, _readers, _docSize, _cappedSize, _written, _errors,
+                                getWriteThroughput(), _lag.getMean(), _lag.getPercentile(50), _lag.getPercentile(90),
+                                _lag.getPercentile(99), _lag.getPercentile(99.9), _lag.getMax(), _lost, _restarts);
+        }
+
+        @Override
+        public String toString() {
+            return "----- " + _writeConcern + " batch: " + _writeBatchSize + " writers: " + _writers + " readers: " + _readers
+            + " doc: " + _docSize + " capped: " + _cappedSize + " written: " + _written
+            + " errors: " + _errors + " lost: " + _lost + " cursor restarts: " + _restarts;
+        }
+
+        private final String _writeConcern;
+        private final int _writeBatchSize;
+        private final int _writers;
+        private final int _readers;
+        private final int _docSize;
+        private final long _cappedSize;
+        private final long _written;
+        private final long _errors;
+        private final long _writeNanos;
+        private final LatencyHistogram _lag;
+        private final long _lost;
+        private final long _restarts;
+    }
+
+    private static String [] list(final String pName, final String pDefault)
+    { return System.getProperty(pName, pDefault).trim().split("\\s*,\\s*"); }
+
+    private static final String DB_NAME = "testTailableBench";
+    private static final String COLLECTION_NAME = "bench";
+
+    private static final int READ_BATCH_SIZE = 100;
+    private static final int MAX_QUEUED_BATCHES = 10;
+    private static final long IDLE_DELAY = 100;
+    private static final long MAX_SKEW = 50;
+    private static final int ID_WINDOW_SIZE = 100000;
+
+    private static final long READER_WARMUP = 1000;
+    private static final long DRAIN_TIMEOUT = 5000;
+}
@@ -0,0 +1,481 @@
+/**
+ * Copyright 2011, Deft Labs.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.deftlabs.examples.mongo;
+
+// Mongo
+import com.mongodb.BasicDBObject;
+import com.mongodb.Bytes;
+import com.mongodb.DB;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import org.bson.types.ObjectId;
+
+// Java
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Tails a capped collection and hands the documents out in batches, either to
+ * a handler (start(Handler)) or to the caller (start() and poll).
+ *
+ * A batch is handed out when it is full, or as soon as the cursor has nothing
+ * more buffered, so a quiet collection does not hold documents back waiting
+ * for a full batch. Full batches go through a bounded queue. When the handler
+ * falls behind the queue fills up and the reader stops pulling from the
+ * cursor, so memory use is bounded by the queue size times the batch size.
+ *
+ * The ts does not have to increase strictly in the collection's natural
+ * order. With several writers (or batched ones, see CappedWriter) a document
+ * can come after one with a higher ts, by up to the max skew. So the point to
+ * resume from is the highest ts read so far minus the max skew: nothing after
+ * the last document read can have a lower ts.
+ *
+ * When the cursor dies (e.g. the collection rolled over past it) a new one is
+ * opened right away, at that resume point. It only waits (the idle delay) if
+ * the cursor died without returning anything, which is what happens on an
+ * empty collection.
+ *
+ * The new cursor starts at (not after) the resume point, so documents written
+ * in the same millisecond are not skipped. The ones that were already read
+ * are dropped by a RecentIdWindow of the last ids, so duplicates are caught
+ * in constant memory.
+ *
+ * With a Checkpointer, the resume point as of the end of each batch is marked
+ * once the batch is acked, and a new consumer starts at the saved checkpoint
+ * instead of the start of the collection. A batch is acked when the handler
+ * returns without throwing (a batch it throws on is retried, so the
+ * checkpoint never moves past it), or, with poll or a handler started
+ * without auto ack, when ack is called. The checkpoint is saved in the
+ * background, so after a crash the documents since the last save are
+ * delivered again (at least once delivery).
+ *
+ * On stop, the batch the reader was filling is queued too, so the handler (or
+ * poll) still gets every document that was read. The driver's hasNext on a
+ * tailable cursor keeps asking for more (and ignores interrupts) until the
+ * cursor dies, so stop closes the live cursor to get the reader out of it.
+ *
+ * The documents must have a numeric ts field that is never more than the max
+ * skew below the highest ts before it, and an ObjectId _id.
+ */
+public final class TailingConsumer {
+
+    /**
+     * Called with each batch, on the consumer's dispatch thread.
+     */
+    public interface Handler {
+        public void handle(final List<DBObject> pBatch) throws Exception;
+    }
+
+    /**
+     * @param pCollection The capped collection.
+     * @param pTsField The increasing numeric field used to resume.
+     * @param pBatchSize The max number of documents in a batch (also the cursor batch size).
+     * @param pMaxQueuedBatches The max number of batches waiting for the handler.
+     * @param pAwaitData If true, the server holds a get more open until there is data.
+     * Otherwise an empty get more returns right away and the reader waits the idle delay.
+     * @param pIdleDelay The millis to wait when there is nothing to read.
+     * @param pWindowSize The number of recent ids kept to drop duplicates.
+     */
+    public TailingConsumer( final DBCollection pCollection,
+                            final String pTsField,
+                            final int pBatchSize,
+                            final int pMaxQueuedBatches,
+                            final boolean pAwaitData,
+                            final long pIdleDelay,
+                            final int pWindowSize)
+    { this(pCollection, pTsField, pBatchSize, pMaxQueuedBatches, pAwaitData, pIdleDelay, pWindowSize, 0, null); }
+
+    /**
+     * @param pCheckpointer Loads the ts to start from and saves the ts delivered
+     * up to (null for none). It is started and closed by the consumer.
+     */
+    public TailingConsumer( final DBCollection pCollection,
+                            final String pTsField,
+                            final int pBatchSize,
+                            final int pMaxQueuedBatches,
+                            final boolean pAwaitData,
+                            final long pIdleDelay,
+                            final int pWindowSize,
+                            final Checkpointer pCheckpointer)
+    { this(pCollection, pTsField, pBatchSize, pMaxQueuedBatches, pAwaitData, pIdleDelay, pWindowSize, 0, pCheckpointer); }
+
+    /**
+     * @param pMaxSkew How far the ts of a document can be below the highest ts
+     * before it in the collection (0 if the ts never goes down). The window
+     * must hold more than the documents written in that time.
+     */
+    public TailingConsumer( final DBCollection pCollection,
+                            final String pTsField,
+                            final int pBatchSize,
+                            final int pMaxQueuedBatches,
+                            final boolean pAwaitData,
+                            final long pIdleDelay,
+                            final int pWindowSize,
+                            final long pMaxSkew,
+                            final Checkpointer pCheckpointer)
+    {
+        _collection = pCollection;
+        _tsField = pTsField;
+        _batchSize = pBatchSize;
+        _awaitData = pAwaitData;
+        _idleDelay = pIdleDelay;
+        _queue = new ArrayBlockingQueue<List<DBObject>>(pMaxQueuedBatches);
+        _maxSkew = pMaxSkew;
+        _window = new RecentIdWindow(pWindowSize, pMaxSkew);
+        _checkpointer = pCheckpointer;
+    }
+
+    /**
+     * Start tailing. Take the batches with poll.
+     */
+    public synchronized void start() {
+        _running = true;
+        _readerDone = false;
+        _reader = new Thread(new Reader(), "tailing-consumer-reader");
+        _reader.setDaemon(true);
+        _reader.start();
+    }
+
+    /**
+     * Start tailing and hand every batch to the handler. Each batch is acked
+     * once the handler returns.
+     */
+    public void start(final Handler pHandler) { start(pHandler, true); }
+
+    /**
+     * Start tailing and hand every batch to the handler.
+     * @param pAutoAck If false, the batches are only acked by calling ack
+     * (e.g. once whoever the handler passes them on to is done with them).
+     */
+    public synchronized void start(final Handler pHandler, final boolean pAutoAck) {
+        start();
+        _dispatcher = new Thread(new Dispatcher(pHandler, pAutoAck), "tailing-consumer-dispatcher");
+        _dispatcher.setDaemon(true);
+        _dispatcher.start();
+    }
+
+    /**
+     * The next batch, or null if there is none within the timeout. Ack it once
+     * it has been processed.
+     */
+    public List<DBObject> poll(final long pTimeout, final TimeUnit pUnit) throws InterruptedException {
+        final List<DBObject> batch = nextBatch(pTimeout, pUnit);
+        if (batch != null) _delivered.addAndGet(batch.size());
+        return batch;
+    }
+
+    /**
+     * Mark the batch as processed, so the checkpoint can move past it. Ack
+     * the batches in the order they were handed out.
+     */
+    public void ack(final List<DBObject> pBatch) { ack(getResumeTs(pBatch)); }
+
+    /**
+     * Mark a batch as processed by its resume ts (see getResumeTs), for when
+     * the batch itself is not kept until it is processed.
+     */
+    public void ack(final long pResumeTs) {
+        if (_checkpointer == null || pResumeTs == Long.MIN_VALUE) return;
+        _checkpointer.mark(pResumeTs);
+    }
+
+    /**
+     * The ts to resume from once the batch is processed (Long.MIN_VALUE if
+     * it is not known). For a list that was not handed out by this consumer,
+     * this only goes by the documents in it.
+     */
+    public long getResumeTs(final List<DBObject> pBatch) {
+        if (pBatch instanceof Batch) return ((Batch)pBatch)._resumeTs;
+
+        long maxTs = Long.MIN_VALUE;
+        for (final DBObject doc : pBatch) {
+            final Object ts = doc.get(_tsField);
+            if (ts instanceof Number) maxTs = Math.max(maxTs, ((Number)ts).longValue());
+        }
+        return (maxTs == Long.MIN_VALUE) ? maxTs : maxTs - _maxSkew;
+    }
+
+    /**
+     * Stop reading. The handler gets the batches that are already queued, and
+     * the one the reader was filling.
+     */
+    public synchronized void stop() throws InterruptedException {
+        _running = false;
+
+        // Break the reader out of a hasNext that is waiting for data.
+        final DBCursor cursor = _cursor;
+        if (cursor != null) {
+            try { cursor.close(); } catch (final Throwable t) { /* nada */ }
+        }
+
+        if (_reader != null) { _reader.interrupt(); _reader.join(); _reader = null; }
+        if (_dispatcher != null) { _dispatcher.join(); _dispatcher = null; }
+
+        if (_checkpointer != null) {
+            try { _checkpointer.close();
+            } catch (final InterruptedException ie) { throw ie;
+            } catch (final Exception e) { e.printStackTrace(); }
+        }
+    }
+
+    /**
+     * The number of documents handled by the handler (or returned by poll).
+     */
+    public long getDelivered() { return _delivered.get(); }
+
+    /**
+     * The number of times the cursor was opened again.
+     */
+    public long getCursorRestarts() { return _cursorRestarts.get(); }
+
+    /**
+     * The number of documents dropped because they were already read.
+     */
+    public long getDuplicates() { return _duplicates.get(); }
+
+    /**
+     * The next queued batch. Once the reader is done, the partial batch it
+     * left (if it did not fit in the queue) comes after the queued ones.
+     */
+    private List<DBObject> nextBatch(final long pTimeout, final TimeUnit pUnit) throws InterruptedException {
+        final List<DBObject> batch = _queue.poll(pTimeout, pUnit);
+        if (batch != null || !_readerDone) return batch;
+        return _leftover.getAndSet(null);
+    }
+
+    private final class Reader implements Runnable {
+        public void run() {
+            try { read();
+            } finally {
+                // Hand off the partial batch instead of dropping it.
+                if (!_batch.isEmpty()) {
+                    _batch._resumeTs = resumeTs();
+                    if (!_queue.offer(_batch)) _leftover.set(_batch);
+                }
+                _readerDone = true;
+            }
+        }
+
+        private void read() {
+            final DB db = _collection.getDB();
+
+            if (_checkpointer != null) {
+                while (true) {
+                    if (!_running) return;
+                    try { _checkpointTs = _checkpointer.load(); break;
+                    } catch (final Throwable t) { t.printStackTrace(); }
+
+                    try { Thread.sleep(_idleDelay); } catch (final InterruptedException ie) { return; }
+                }
+                _checkpointer.start();
+            }
+
+            while (_running) {
+                boolean gotDocs = false;
+
+                try {
+                    db.requestStart();
+                    final DBCursor cur = createCursor();
+                    _cursor = cur;
+                    _received = 0;
+                    _responses = 0;
+
+                    try {
+                        while (_running) {
+                            // Do not sit on a partial batch while the cursor waits for more.
+                            if (!_batch.isEmpty() && buffered(cur) == 0) flush();
+
+                            if (!cur.hasNext()) {
+                                if (cur.getCursorId() == 0) break; // Dead.
+
+                                // Nothing yet (only without await data).
+                                flush();
+                                Thread.sleep(_idleDelay);
+                                continue;
+                            }
+
+                            final DBObject doc = cur.next();
+                            gotDocs = true;
+
+                            final Object ts = doc.get(_tsField);
+                            final Object id = doc.get("_id");
+
+                            if (ts instanceof Number) {
+                                final long docTs = ((Number)ts).longValue();
+                                if (docTs > _maxTs) _maxTs = docTs;
+                                if (id instanceof ObjectId && !_window.add(docTs, (ObjectId)id)) { _duplicates.incrementAndGet(); continue; }
+                            }
+
+                            _batch.add(doc);
+                            if (_batch.size() >= _batchSize) flush();
+
+                            // The driver keeps the size of every reply for the life of the
+                            // cursor, so start a new one now and then.
+                            if (cur.numGetMores() >= MAX_GET_MORES_PER_CURSOR) break;
+                        }
+                    } finally {
+                        _cursor = null;
+                        try { cur.close(); } catch (final Throwable t) { /* nada */ }
+                        db.requestDone();
+                    }
+
+                    flush();
+
+                } catch (final InterruptedException ie) { break;
+                } catch (final Throwable t) { if (_running) t.printStackTrace(); }
+
+                _cursorRestarts.incrementAndGet();
+
+                // Reconnect right away, unless there was nothing to read.
+                if (!gotDocs) {
+                    try { Thread.sleep(_idleDelay); } catch (final InterruptedException ie) { break; }
+                }
+            }
+        }
+
+        /**
+         * The number of documents the cursor has read from the server and not
+         * returned yet. If zero, hasNext will go to the server.
+         */
+        private int buffered(final DBCursor pCur) {
+            final List<Integer> sizes = pCur.getSizes();
+            for (int idx=_responses; idx < sizes.size(); idx++) _received += sizes.get(idx);
+            _responses = sizes.size();
+            return (int)(_received - pCur.numSeen());
+        }
+
+        private void flush() throws InterruptedException {
+            if (_batch.isEmpty()) return;
+            _batch._resumeTs = resumeTs();
+            _queue.put(_batch);
+            _batch = new Batch(_batchSize);
+        }
+
+        /**
+         * The highest ts read minus the max skew. Never before the checkpoint
+         * it started at, since everything read came after that.
+         */
+        private long resumeTs() { return (_maxTs == Long.MIN_VALUE) ? _checkpointTs : Math.max(_checkpointTs, _maxTs - _maxSkew); }
+
+        private DBCursor createCursor() {
+            final long resumeTs = resumeTs();
+            final DBObject query
+            = (resumeTs == Long.MIN_VALUE) ? new BasicDBObject() : new BasicDBObject(_tsField, new BasicDBObject("$gte", resumeTs));
+
+            final DBCursor cur = _collection.find(query).sort(new BasicDBObject("$natural", 1)).batchSize(_batchSize);
+            cur.addOption(Bytes.QUERYOPTION_TAILABLE);
+            if (_awaitData) cur.addOption(Bytes.QUERYOPTION_AWAITDATA);
+            return cur;
+        }
+
+        private Batch _batch = new Batch(_batchSize);
+        private long _checkpointTs = Long.MIN_VALUE;
+        private long _maxTs = Long.MIN_VALUE;
+        private long _received;
+        private int _responses;
+    }
+
+    /**
+     * A batch as handed out, with the ts to resume from once it is processed.
+     */
+    private static final class Batch extends ArrayList<DBObject> {
+        private Batch(final int pCapacity) { super(pCapacity); }
+
+        private long _resumeTs = Long.MIN_VALUE;
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    private final class Dispatcher implements Runnable {
+        private Dispatcher(final Handler pHandler, final boolean pAutoAck) { _handler = pHandler; _autoAck = pAutoAck; }
+
+        public void run() {
+            while (true) {
+                try {
+                    final List<DBObject> batch = nextBatch(POLL_TIMEOUT, TimeUnit.MILLISECONDS);
+
+                    if (batch == null) {
+                        if (_readerDone) return;
+                        continue;
+                    }
+
+                    // Stopped on a batch the handler keeps failing on. The rest
+                    // is not handed out (or acked) past it.
+                    if (!handle(batch)) return;
+
+                    _delivered.addAndGet(batch.size());
+                    if (_autoAck) ack(batch);
+
+                } catch (final InterruptedException ie) { return; }
+            }
+        }
+
+        /**
+         * Hand the batch to the handler, again after the idle delay if it
+         * throws. Returns false if the consumer was stopped first.
+         */
+        private boolean handle(final List<DBObject> pBatch) throws InterruptedException {
+            while (true) {
+                try { _handler.handle(pBatch); return true;
+                } catch (final InterruptedException ie) { throw ie;
+                } catch (final Throwable t) { t.printStackTrace(); }
+
+                if (!_running) return false;
+                Thread.sleep(_idleDelay);
+            }
+        }
+
+        private final Handler _handler;
+        private final boolean _autoAck;
+    }
+
+    private static final int MAX_GET_MORES_PER_CURSOR = 100000;
+    private static final long POLL_TIMEOUT = 100;
+
+    private final DBCollection _collection;
+    private final String _tsField;
+    private final int _batchSize;
+    private final boolean _awaitData;
+    private final long _idleDelay;
+    private final long _maxSkew;
+    private final ArrayBlockingQueue<List<DBObject>> _queue;
+
+    private final AtomicLong _delivered = new AtomicLong(0);
+    private final AtomicLong _cursorRestarts = new AtomicLong(0);
+    private final AtomicLong _duplicates = new AtomicLong(0);
+
+    // Only used by the reader thread.
+    private final RecentIdWindow _window;
+
+    private final Checkpointer _checkpointer;
+
+    // The partial batch the reader left on stop, if the queue was full.
+    private final AtomicReference<List<DBObject>> _leftover = new AtomicReference<List<DBObject>>();
+
+    private volatile boolean _running;
+    private volatile boolean _readerDone;
+
+    // The reader's live cursor, so stop can close it.
+    private volatile DBCursor _cursor;
+    private Thread _reader;
+    private Thread _dispatcher;
+}